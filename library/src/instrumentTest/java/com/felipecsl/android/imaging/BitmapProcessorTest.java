@@ -0,0 +1,94 @@
+package com.felipecsl.android.imaging;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.google.mockwebserver.MockResponse;
+import com.google.mockwebserver.MockWebServer;
+
+/**
+ * Checks against a local server that decoding a remote image downloads it only once.
+ */
+public class BitmapProcessorTest extends AndroidTestCase {
+
+    private MockWebServer server;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new MockWebServer();
+        server.play();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.shutdown();
+
+        super.tearDown();
+    }
+
+    public void testRemoteUrlIsRequestedOncePerMiss() throws Exception {
+        server.enqueue(new MockResponse().setBody(createPng(200, 100)).addHeader("Content-Type", "image/png"));
+
+        final Result result = decode("/image.png", 50, 50);
+
+        assertNull(result.failure.get());
+        assertNotNull(result.bitmap.get());
+        // Sampled by 2, the smaller ratio
+        assertEquals(100, result.bitmap.get().getWidth());
+        assertEquals(50, result.bitmap.get().getHeight());
+        assertEquals(1, server.getRequestCount());
+        assertEquals("/image.png", server.takeRequest().getPath());
+    }
+
+    public void testFailedDownloadIsRequestedOnce() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(404));
+
+        final Result result = decode("/missing.png", 50, 50);
+
+        assertNull(result.bitmap.get());
+        assertNotNull(result.failure.get());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    private static class Result implements ImageManagerCallback {
+        final AtomicReference<Bitmap> bitmap = new AtomicReference<Bitmap>();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        @Override
+        public void onBitmapLoaded(final Bitmap loaded, final LoadedFrom source) {
+            bitmap.set(loaded);
+        }
+
+        @Override
+        public void onLoadFailed(final LoadedFrom source, final Exception e) {
+            failure.set(e);
+        }
+    }
+
+    /**
+     * Runs on the calling thread, the callback is notified before it returns.
+     */
+    private Result decode(final String path, final int reqWidth, final int reqHeight) {
+        final Result result = new Result();
+
+        BitmapProcessor.decodeSampledBitmapFromRemoteUrl(getContext(), server.getUrl(path).toString(), reqWidth, reqHeight,
+                result);
+
+        return result;
+    }
+
+    private static byte[] createPng(final int width, final int height) {
+        final Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+
+        return out.toByteArray();
+    }
+}
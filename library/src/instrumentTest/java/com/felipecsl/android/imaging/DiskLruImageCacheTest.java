@@ -0,0 +1,85 @@
+package com.felipecsl.android.imaging;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Covers the content addressed storage: identical bodies stored once, aliases resolved to them,
+ * and aliases whose bytes are gone dropped.
+ */
+public class DiskLruImageCacheTest extends AndroidTestCase {
+
+    private static final byte[] DATA = "not an image".getBytes();
+
+    private File directory;
+    private DiskLruImageCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = new File(getContext().getCacheDir(), "DiskLruImageCacheTest");
+        FileUtils.deleteQuietly(directory);
+        // Every entry in one shard directory, none packed, so that a test can find their files
+        cache = new DiskLruImageCache.Builder(getContext()).setDirectory(directory).setSize(1024 * 1024)
+                .setShardCount(1).setPackedEntryThreshold(0).build();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        cache.close();
+        FileUtils.deleteQuietly(directory);
+
+        super.tearDown();
+    }
+
+    public void testIdenticalBodiesAreStoredOnce() {
+        cache.put("a", DATA);
+        cache.put("b", DATA.clone());
+
+        assertEquals(1, cache.getDedupCount());
+        assertTrue(Arrays.equals(DATA, cache.getBytes("a")));
+        assertTrue(Arrays.equals(DATA, cache.getBytes("b")));
+        assertTrue(getContentFile().exists());
+    }
+
+    public void testAliasResolvesToTheTargetBytes() {
+        cache.put("a", DATA);
+        cache.putAlias("etag", "a");
+
+        assertTrue(cache.containsKey("etag"));
+        assertTrue(cache.mightContain("etag"));
+        assertTrue(Arrays.equals(DATA, cache.getBytes("etag")));
+        // The bytes weren't copied
+        assertEquals(0, cache.getDedupCount());
+    }
+
+    public void testAliasOfAMissingTargetIsNotWritten() {
+        cache.putAlias("etag", "a");
+
+        assertFalse(cache.mightContain("etag"));
+        assertFalse(cache.containsKey("etag"));
+        assertNull(cache.getBytes("etag"));
+    }
+
+    public void testDanglingAliasIsDropped() {
+        cache.put("a", DATA);
+        cache.putAlias("etag", "a");
+
+        assertTrue(getContentFile().delete());
+
+        assertFalse(cache.containsKey("a"));
+        assertFalse(cache.mightContain("a"));
+        assertFalse(cache.containsKey("etag"));
+        assertFalse(cache.mightContain("etag"));
+        assertNull(cache.getBytes("etag"));
+    }
+
+    private File getContentFile() {
+        return new File(new File(directory, "shard-0"), CacheKey.getContentKey(DATA) + ".0");
+    }
+}
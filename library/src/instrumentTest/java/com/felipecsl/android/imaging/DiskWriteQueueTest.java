@@ -0,0 +1,247 @@
+package com.felipecsl.android.imaging;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Covers merging, the byte bound, dropping and aliases with a queue whose writes are recorded
+ * instead of reaching the disk, and the write-through with a real disk cache.
+ */
+public class DiskWriteQueueTest extends AndroidTestCase {
+
+    private static final int MAX_PENDING_BYTES = 10;
+
+    private PipelineStage stage;
+    private CountDownLatch stageBlocked;
+
+    /**
+     * Records the writes instead of making them.
+     */
+    private static class RecordingQueue extends DiskWriteQueue {
+        final List<String> writes = new ArrayList<String>();
+
+        RecordingQueue(final PipelineStage stage, final int maxPendingBytes) {
+            super(null, stage, maxPendingBytes);
+        }
+
+        @Override
+        void write(final String key, final byte[] data) {
+            synchronized (writes) {
+                writes.add(key + "=" + new String(data));
+            }
+        }
+
+        @Override
+        void writeAlias(final String key, final String targetKey) {
+            synchronized (writes) {
+                writes.add(key + "->" + targetKey);
+            }
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        stage = new PipelineStage("DiskWriteQueueTest", new StageOptions(1));
+    }
+
+    public void testMergesWritesForTheSameKey() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES);
+
+        blockStage();
+        assertTrue(queue.enqueue("a", "old".getBytes()));
+        assertTrue(queue.enqueue("a", "new".getBytes()));
+
+        assertEquals(1, queue.getMergedCount());
+        assertEquals(1, queue.getQueueDepth());
+        assertEquals(3, queue.getPendingBytes());
+        assertEquals("new", new String(queue.get("a")));
+
+        unblockStageAndFlush();
+
+        assertEquals(Arrays.asList("a=new"), queue.writes);
+        assertEquals(1, queue.getWriteCount());
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getPendingBytes());
+        assertNull(queue.get("a"));
+    }
+
+    public void testDropsWritesOverTheByteBound() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES);
+
+        blockStage();
+        assertTrue(queue.enqueue("a", "123456".getBytes()));
+        assertFalse(queue.enqueue("b", "123456".getBytes()));
+        assertTrue(queue.enqueue("c", "1234".getBytes()));
+
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(MAX_PENDING_BYTES, queue.getPendingBytes());
+        assertNull(queue.get("b"));
+
+        unblockStageAndFlush();
+
+        assertEquals(Arrays.asList("a=123456", "c=1234"), queue.writes);
+    }
+
+    public void testReplacingAWriteFreesItsBytes() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES);
+
+        blockStage();
+        assertTrue(queue.enqueue("a", "123456".getBytes()));
+        assertTrue(queue.enqueue("a", "12".getBytes()));
+        assertTrue(queue.enqueue("b", "12345678".getBytes()));
+
+        assertEquals(0, queue.getDroppedCount());
+        assertEquals(MAX_PENDING_BYTES, queue.getPendingBytes());
+
+        unblockStageAndFlush();
+
+        assertEquals(Arrays.asList("a=12", "b=12345678"), queue.writes);
+    }
+
+    public void testClearDropsQueuedWrites() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES);
+
+        blockStage();
+        queue.enqueue("a", "1".getBytes());
+        queue.enqueue("b", "2".getBytes());
+        queue.clear();
+
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getPendingBytes());
+
+        unblockStageAndFlush();
+
+        assertTrue(queue.writes.isEmpty());
+    }
+
+    /**
+     * A write queued for a key while the previous one for it is being written must not be removed
+     * with it, it's written next.
+     */
+    public void testWriteReplacedDuringDrainIsKept() throws Exception {
+        final List<String> readsDuringWrite = new ArrayList<String>();
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES) {
+            @Override
+            void write(final String key, final byte[] data) {
+                super.write(key, data);
+
+                if (writes.size() == 1) {
+                    // Still served while it's written
+                    readsDuringWrite.add(new String(get(key)));
+                    enqueue(key, "new".getBytes());
+                }
+            }
+        };
+
+        assertTrue(queue.enqueue("a", "old".getBytes()));
+        flush();
+
+        assertEquals(Arrays.asList("old"), readsDuringWrite);
+        assertEquals(Arrays.asList("a=old", "a=new"), queue.writes);
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(0, queue.getPendingBytes());
+    }
+
+    public void testWritesAliasesAfterImages() throws Exception {
+        final RecordingQueue queue = new RecordingQueue(stage, MAX_PENDING_BYTES);
+
+        blockStage();
+        queue.enqueueAlias("etag", "a");
+        assertTrue(queue.enqueue("a", "data".getBytes()));
+
+        assertEquals(2, queue.getQueueDepth());
+        // Aliases take no bytes, and serve those of their target until written
+        assertEquals(4, queue.getPendingBytes());
+        assertEquals("data", new String(queue.get("etag")));
+
+        unblockStageAndFlush();
+
+        assertEquals(Arrays.asList("a=data", "etag->a"), queue.writes);
+        assertEquals(0, queue.getQueueDepth());
+        assertNull(queue.get("etag"));
+    }
+
+    public void testWritesThroughToTheDiskCache() throws Exception {
+        final File directory = new File(getContext().getCacheDir(), "DiskWriteQueueTest");
+        FileUtils.deleteQuietly(directory);
+        final DiskLruImageCache diskCache = new DiskLruImageCache.Builder(getContext()).setDirectory(directory)
+                .setSize(1024 * 1024).build();
+
+        try {
+            final DiskWriteQueue queue = new DiskWriteQueue(diskCache, stage);
+            final byte[] data = "not an image".getBytes();
+
+            assertTrue(queue.enqueue("a", data));
+            flush();
+
+            assertEquals(1, queue.getWriteCount());
+            assertNull(queue.get("a"));
+            assertTrue(Arrays.equals(data, diskCache.getBytes("a")));
+        } finally {
+            diskCache.close();
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    /**
+     * Keeps the stage's only thread busy, so that queued writes wait until
+     * {@link #unblockStageAndFlush()}.
+     */
+    private void blockStage() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        stageBlocked = new CountDownLatch(1);
+
+        final CountDownLatch blocked = stageBlocked;
+        stage.submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    blocked.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void onRejected() {}
+        });
+
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+    }
+
+    private void unblockStageAndFlush() throws InterruptedException {
+        stageBlocked.countDown();
+        flush();
+    }
+
+    /**
+     * Waits for the tasks already submitted to the stage, which runs them in order on one thread.
+     */
+    private void flush() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        stage.submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+
+            @Override
+            public void onRejected() {}
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,230 @@
+package com.felipecsl.android.imaging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * Hammers the striped cache from several threads, and compares the lookups it serves while decode
+ * workers insert with those served by the single lock LruCache wrapper it replaced.
+ */
+public class MemoryLruImageCacheTest extends TestCase {
+
+    private static final String TAG = "MemoryLruImageCacheTest";
+    // In kilobytes, every test bitmap takes 1KB
+    private static final int CACHE_SIZE = 64;
+    private static final int KEY_COUNT = 256;
+    private static final int WRITER_COUNT = 4;
+    private static final long RUN_TIME_MS = 2000;
+
+    private Bitmap[] bitmaps;
+    private CacheKey[] keys;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        bitmaps = new Bitmap[KEY_COUNT];
+        keys = new CacheKey[KEY_COUNT];
+
+        for (int i = 0; i < KEY_COUNT; i++) {
+            bitmaps[i] = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+            keys[i] = CacheKey.forUrl("http://example.com/" + i);
+        }
+    }
+
+    /**
+     * The memory cache before it was striped: every get and put synchronized on one monitor.
+     */
+    private static class LockedLruCache extends LruCache<CacheKey, Bitmap> {
+        LockedLruCache(final int cacheSizeInKb) {
+            super(cacheSizeInKb);
+        }
+
+        @Override
+        protected int sizeOf(final CacheKey key, final Bitmap bitmap) {
+            return (bitmap.getRowBytes() * bitmap.getHeight() + 1023) / 1024;
+        }
+    }
+
+    /**
+     * The operations both caches are driven with, as CacheManager does: lookups, and inserts of
+     * what was missing.
+     */
+    private static interface Cache {
+        Bitmap get(CacheKey key);
+
+        void putIfAbsent(CacheKey key, Bitmap bitmap);
+
+        int size();
+    }
+
+    public void testStaysWithinSizeUnderConcurrentAccess() throws Exception {
+        final MemoryLruImageCache cache = new MemoryLruImageCache(CACHE_SIZE);
+
+        run(wrap(cache), WRITER_COUNT + 1, RUN_TIME_MS / 2);
+
+        assertTrue("size " + cache.size(), cache.size() <= CACHE_SIZE);
+        assertTrue(cache.snapshot().size() <= CACHE_SIZE);
+        assertEquals(cache.size(), cache.snapshot().size());
+    }
+
+    public void testPutIfAbsentKeepsTheFirstBitmap() throws Exception {
+        final MemoryLruImageCache cache = new MemoryLruImageCache(CACHE_SIZE);
+        final CacheKey key = keys[0];
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicReference<Bitmap> winner = new AtomicReference<Bitmap>();
+        final AtomicInteger disagreements = new AtomicInteger();
+
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            final Bitmap bitmap = bitmaps[i];
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+
+                    final Bitmap cached = cache.putIfAbsent(key, bitmap);
+
+                    if (!winner.compareAndSet(null, cached) && winner.get() != cached)
+                        disagreements.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, disagreements.get());
+        assertSame(winner.get(), cache.get(key));
+        assertEquals(1, cache.putCount());
+    }
+
+    /**
+     * A UI thread looking up images while decode workers insert them, with a working set larger
+     * than the cache so that the workers keep evicting.
+     */
+    public void testLookupsUnderWriteLoadVersusLockedLruCache() throws Exception {
+        final int lockedLookups = run(wrap(new LockedLruCache(CACHE_SIZE)), WRITER_COUNT, RUN_TIME_MS);
+        final int stripedLookups = run(wrap(new MemoryLruImageCache(CACHE_SIZE)), WRITER_COUNT, RUN_TIME_MS);
+
+        Log.i(TAG, "Lookups in " + RUN_TIME_MS + "ms with " + WRITER_COUNT + " writers: LruCache " + lockedLookups
+                   + ", MemoryLruImageCache " + stripedLookups);
+
+        // Timing depends on the device, only a clear regression fails
+        assertTrue("LruCache " + lockedLookups + " vs MemoryLruImageCache " + stripedLookups,
+                stripedLookups >= lockedLookups / 2);
+    }
+
+    /**
+     * Runs the writers and one reader for the provided time.
+     *
+     * @return number of lookups made by the reader
+     */
+    private int run(final Cache cache, final int writerCount, final long timeMs) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<Thread>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger lookups = new AtomicInteger();
+        final long deadline = System.currentTimeMillis() + timeMs;
+
+        for (int i = 0; i <= writerCount; i++) {
+            final boolean reader = i == writerCount;
+            final Random random = new Random(i);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            final int index = random.nextInt(KEY_COUNT);
+
+                            if (reader) {
+                                cache.get(keys[index]);
+                                lookups.incrementAndGet();
+                            } else if (cache.get(keys[index]) == null) {
+                                cache.putIfAbsent(keys[index], bitmaps[index]);
+                            }
+                        }
+                    } catch (final Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        assertTrue("size " + cache.size(), cache.size() <= CACHE_SIZE);
+        return lookups.get();
+    }
+
+    private static Cache wrap(final MemoryLruImageCache cache) {
+        return new Cache() {
+            @Override
+            public Bitmap get(final CacheKey key) {
+                return cache.get(key);
+            }
+
+            @Override
+            public void putIfAbsent(final CacheKey key, final Bitmap bitmap) {
+                cache.putIfAbsent(key, bitmap);
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        };
+    }
+
+    private static Cache wrap(final LruCache<CacheKey, Bitmap> cache) {
+        return new Cache() {
+            @Override
+            public Bitmap get(final CacheKey key) {
+                return cache.get(key);
+            }
+
+            @Override
+            public void putIfAbsent(final CacheKey key, final Bitmap bitmap) {
+                // The check and the insert the old CacheManager.put() made
+                if (cache.get(key) == null)
+                    cache.put(key, bitmap);
+            }
+
+            @Override
+            public int size() {
+                return cache.size();
+            }
+        };
+    }
+
+    private static void awaitQuietly(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.felipecsl.android.imaging;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import android.graphics.Bitmap;
+
+/**
+ * Covers the count-min sketch and the admission decision, and replays a trace through
+ * {@link MemoryLruImageCache} with and without the policy.
+ */
+public class TinyLfuAdmissionPolicyTest extends TestCase {
+
+    // In kilobytes, every replayed bitmap takes 1KB
+    private static final int CACHE_SIZE = 50;
+
+    public void testFrequencyCountsAccesses() {
+        final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(256);
+        final CacheKey key = CacheKey.forUrl("http://example.com/a.png");
+
+        assertEquals(0, policy.frequencyOf(key));
+
+        for (int i = 0; i < 5; i++) {
+            policy.recordAccess(key);
+        }
+
+        assertEquals(5, policy.frequencyOf(key));
+        assertEquals(0, policy.frequencyOf(CacheKey.forUrl("http://example.com/b.png")));
+    }
+
+    public void testFrequencySaturates() {
+        final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(256);
+        final CacheKey key = CacheKey.forUrl("http://example.com/a.png");
+
+        for (int i = 0; i < 100; i++) {
+            policy.recordAccess(key);
+        }
+
+        assertEquals(15, policy.frequencyOf(key));
+    }
+
+    public void testCountsAreHalvedPeriodically() {
+        final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(64);
+        final CacheKey key = CacheKey.forUrl("http://example.com/a.png");
+
+        for (int i = 0; i < 15; i++) {
+            policy.recordAccess(key);
+        }
+
+        // Enough additions to fill the sample, whatever collides with the key
+        for (int i = 0; i < 64 * 10; i++) {
+            policy.recordAccess(CacheKey.forUrl("http://example.com/once/" + i));
+        }
+
+        assertTrue(policy.frequencyOf(key) < 15);
+    }
+
+    public void testAdmitsMoreFrequentCandidate() {
+        final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(256);
+        final CacheKey frequent = CacheKey.forUrl("http://example.com/frequent.png");
+        final CacheKey rare = CacheKey.forUrl("http://example.com/rare.png");
+
+        for (int i = 0; i < 3; i++) {
+            policy.recordAccess(frequent);
+        }
+        policy.recordAccess(rare);
+
+        assertTrue(policy.admit(frequent, rare));
+        assertFalse(policy.admit(rare, frequent));
+    }
+
+    public void testAdmitsCandidateOnTie() {
+        final TinyLfuAdmissionPolicy policy = new TinyLfuAdmissionPolicy(256);
+        final CacheKey candidate = CacheKey.forUrl("http://example.com/candidate.png");
+        final CacheKey victim = CacheKey.forUrl("http://example.com/victim.png");
+
+        assertTrue(policy.admit(candidate, victim));
+
+        policy.recordAccess(candidate);
+        policy.recordAccess(victim);
+
+        assertTrue(policy.admit(candidate, victim));
+    }
+
+    /**
+     * A skewed set of images shown over and over, as avatars in a feed, interleaved with images
+     * shown once while flinging. The policy keeps the one time images from flushing the reused
+     * ones.
+     */
+    public void testBeatsLruOnTraceWithScans() {
+        final CacheKey[] trace = buildTrace(new Random(42), 20000);
+        final MemoryLruImageCache lru = new MemoryLruImageCache(CACHE_SIZE);
+        final MemoryLruImageCache tinyLfu = new MemoryLruImageCache(CACHE_SIZE, new TinyLfuAdmissionPolicy(4 * CACHE_SIZE));
+
+        final double lruHitRatio = replay(trace, lru);
+        final double tinyLfuHitRatio = replay(trace, tinyLfu);
+
+        assertTrue("TinyLFU " + tinyLfuHitRatio + " vs LRU " + lruHitRatio, tinyLfuHitRatio > lruHitRatio + 0.05);
+        assertEquals(0, lru.rejectionCount());
+        assertTrue(tinyLfu.rejectionCount() > 0);
+        assertTrue(tinyLfu.size() <= CACHE_SIZE);
+    }
+
+    /**
+     * The policy is only consulted once the cache is full: until then every entry is admitted,
+     * even if its victim would be more frequent.
+     */
+    public void testAdmitsEverythingUntilFull() {
+        final MemoryLruImageCache cache = new MemoryLruImageCache(CACHE_SIZE, new TinyLfuAdmissionPolicy(4 * CACHE_SIZE));
+        final Bitmap bitmap = createBitmap();
+
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            final CacheKey key = CacheKey.forUrl("http://example.com/hot/" + i);
+
+            for (int j = 0; j < 5; j++) {
+                cache.get(key);
+            }
+            assertSame(bitmap, cache.putIfAbsent(key, bitmap));
+        }
+
+        assertEquals(CACHE_SIZE, cache.size());
+        assertEquals(0, cache.rejectionCount());
+
+        // Looked up once, less than the eldest entry
+        final CacheKey once = CacheKey.forUrl("http://example.com/once");
+        cache.get(once);
+
+        assertNull(cache.putIfAbsent(once, bitmap));
+        assertEquals(1, cache.rejectionCount());
+        assertFalse(cache.containsKey(once));
+        assertEquals(CACHE_SIZE, cache.size());
+    }
+
+    /**
+     * Without one time images, the policy must not cost hits on a working set that fits.
+     */
+    public void testMatchesLruWhenWorkingSetFits() {
+        final Random random = new Random(7);
+        final CacheKey[] trace = new CacheKey[5000];
+
+        for (int i = 0; i < trace.length; i++) {
+            trace[i] = CacheKey.forUrl("http://example.com/hot/" + random.nextInt(CACHE_SIZE));
+        }
+
+        final MemoryLruImageCache tinyLfu = new MemoryLruImageCache(CACHE_SIZE, new TinyLfuAdmissionPolicy(4 * CACHE_SIZE));
+
+        assertEquals(replay(trace, new MemoryLruImageCache(CACHE_SIZE)), replay(trace, tinyLfu), 0.0001);
+        assertEquals(0, tinyLfu.rejectionCount());
+    }
+
+    private static CacheKey[] buildTrace(final Random random, final int length) {
+        final CacheKey[] trace = new CacheKey[length];
+        int scanned = 0;
+
+        for (int i = 0; i < length; i++) {
+            if (random.nextBoolean()) {
+                // Skewed towards the first of 100 reused images
+                final double r = random.nextDouble();
+                trace[i] = CacheKey.forUrl("http://example.com/hot/" + (int)(100 * r * r * r));
+            } else {
+                trace[i] = CacheKey.forUrl("http://example.com/once/" + scanned++);
+            }
+        }
+
+        return trace;
+    }
+
+    /**
+     * Replays the trace through the cache as CacheManager uses it: a lookup, and on a miss an
+     * insert, which the cache's policy may reject.
+     *
+     * @return the hit ratio
+     */
+    private static double replay(final CacheKey[] trace, final MemoryLruImageCache cache) {
+        final Bitmap bitmap = createBitmap();
+        int hits = 0;
+
+        for (final CacheKey key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.putIfAbsent(key, bitmap);
+            }
+        }
+
+        return (double)hits / trace.length;
+    }
+
+    private static Bitmap createBitmap() {
+        return Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+    }
+}
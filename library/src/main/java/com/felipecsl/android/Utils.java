@@ -3,14 +3,15 @@ package com.felipecsl.android;
 import java.io.File;
 
 import android.annotation.SuppressLint;
+import android.app.ActivityManager;
 import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.provider.MediaStore;
-import android.support.v4.content.CursorLoader;
 import android.util.Log;
 
 import com.felipecsl.android.imaging.MemoryLruImageCache;
@@ -24,6 +25,18 @@ public class Utils {
         public static int getSizeInBytes(final Bitmap bitmap) {
             return bitmap.getByteCount();
         }
+
+        public static int getLargeMemoryClass(final ActivityManager activityManager) {
+            return activityManager.getLargeMemoryClass();
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static class KitKatOrHigherUtils {
+        public static int getSizeInBytes(final Bitmap bitmap) {
+            // Reused bitmaps may be backed by a larger allocation than their current size
+            return bitmap.getAllocationByteCount();
+        }
     }
 
     @SuppressLint("NewApi")
@@ -34,6 +47,10 @@ public class Utils {
     }
 
     public static int getSizeInBytes(final Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.KITKAT) {
+            return KitKatOrHigherUtils.getSizeInBytes(bitmap);
+        }
+
         if (Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.HONEYCOMB_MR2) {
             return HoneycombOrHigherUtils.getSizeInBytes(bitmap);
         }
@@ -44,7 +61,8 @@ public class Utils {
     /**
      * Gets the corresponding path to a file from the given content:// URI
      * <p>
-     * This must run on the main thread
+     * Queries the content resolver on the calling thread, so it may run on any thread but should
+     * be kept off the main thread
      * 
      * @param context
      * @param uri
@@ -55,8 +73,7 @@ public class Utils {
         String contentPath = null;
         try {
             final String[] proj = { MediaStore.Images.Media.DATA };
-            final CursorLoader loader = new CursorLoader(context, uri, proj, null, null, null);
-            cursor = loader.loadInBackground();
+            cursor = context.getContentResolver().query(uri, proj, null, null, null);
             final int columnIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
             cursor.moveToFirst();
             contentPath = cursor.getString(columnIndex);
@@ -89,23 +106,55 @@ public class Utils {
     }
 
     /**
-     * Creates a LruCache<String, Bitmap> with a capacity of 1/8th of the total available device
+     * Creates a LruCache<CacheKey, Bitmap> with a capacity of 1/8th of the total available device
      * memory.
+     * <p>
+     * Prefer {@link #createDefaultBitmapLruCache(Context)}, which sizes the cache after the heap
+     * the system actually grants the app.
      * 
-     * @return LruCache<String, Bitmap>
+     * @return LruCache<CacheKey, Bitmap>
      */
     public static MemoryLruImageCache createDefaultBitmapLruCache() {
         // Get max available VM memory, exceeding this amount will throw an
         // OutOfMemory exception. Stored in kilobytes as LruCache takes an
         // int in its constructor.
-        final int maxMemory = (int)(Runtime.getRuntime().maxMemory() / 1024); // TODO: We should use
-                                                                              // ActivityManager.MemoryInfo's
-                                                                              // availMem
+        final int maxMemory = (int)(Runtime.getRuntime().maxMemory() / 1024);
         Log.d(TAG, "Runtime.getRuntime().maxMemory(): " + maxMemory + "kb");
 
         // Use 1/8th of the available memory for this memory cache.
-        final int cacheSize = maxMemory / 8;
+        return createBitmapLruCache(maxMemory / 8);
+    }
+
+    /**
+     * Creates a LruCache<CacheKey, Bitmap> with a capacity of 1/8th of the app's memory class, or
+     * of its large memory class if it requested a large heap.
+     * <p>
+     * To use an {@link com.felipecsl.android.imaging.AdmissionPolicy}, create the cache with
+     * {@link #getDefaultMemoryCacheSize(Context)} instead.
+     * 
+     * @return LruCache<CacheKey, Bitmap>
+     */
+    public static MemoryLruImageCache createDefaultBitmapLruCache(final Context context) {
+        return createBitmapLruCache(getDefaultMemoryCacheSize(context));
+    }
+
+    /**
+     * @return 1/8th of the app's memory class, or of its large memory class if it requested a large
+     *         heap, in kilobytes
+     */
+    public static int getDefaultMemoryCacheSize(final Context context) {
+        final ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        final boolean largeHeap = (context.getApplicationInfo().flags & ApplicationInfo.FLAG_LARGE_HEAP) != 0;
+        final int memoryClass = largeHeap && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                ? HoneycombOrHigherUtils.getLargeMemoryClass(activityManager)
+                : activityManager.getMemoryClass();
+
+        Log.d(TAG, "Memory class: " + memoryClass + "mb");
+
+        return memoryClass * 1024 / 8;
+    }
 
+    private static MemoryLruImageCache createBitmapLruCache(final int cacheSize) {
         Log.d(TAG, "Initializing LruCache with size " + cacheSize + "kb");
 
         return new MemoryLruImageCache(cacheSize);
@@ -0,0 +1,135 @@
+package com.felipecsl.android.imaging;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bitmaps about to be displayed or displayed by a {@link CacheableDrawable}, with the number of
+ * references to each of them. Sits between the {@link CacheManager} and the views: an image still
+ * on screen is served from here even after the memory cache evicted it, and an active bitmap is
+ * never put in the {@link BitmapPool} until its last reference is released.
+ * <p>
+ * Bitmaps are only weakly held. Drawables replaced outside of ImageManager never release theirs,
+ * which only means those bitmaps are garbage collected instead of reused. Bitmaps handed to the
+ * app's callbacks are never reused either, see {@link #export(Bitmap)}.
+ */
+public final class ActiveResources {
+
+    private final Map<Bitmap, Resource> resources = new WeakHashMap<Bitmap, Resource>();
+    private final Map<CacheKey, WeakReference<Bitmap>> bitmaps = new HashMap<CacheKey, WeakReference<Bitmap>>();
+    private final Map<Bitmap, Boolean> exported = new WeakHashMap<Bitmap, Boolean>();
+    private int hitCount;
+
+    private static final class Resource {
+        final CacheKey key;
+        int references;
+        // Whether the memory cache doesn't hold the bitmap anymore, or never did. The pool gets it
+        // back when its last reference is released
+        boolean uncached;
+
+        Resource(final CacheKey key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * @return the active bitmap for the key, or null
+     */
+    public synchronized Bitmap get(final CacheKey key) {
+        final WeakReference<Bitmap> reference = bitmaps.get(key);
+
+        if (reference == null)
+            return null;
+
+        final Bitmap bitmap = reference.get();
+
+        if (bitmap == null || !resources.containsKey(bitmap)) {
+            bitmaps.remove(key);
+            return null;
+        }
+
+        hitCount++;
+        return bitmap;
+    }
+
+    public synchronized boolean isActive(final Bitmap bitmap) {
+        return resources.containsKey(bitmap);
+    }
+
+    /**
+     * @return number of lookups served from the active bitmaps
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    public synchronized int size() {
+        return resources.size();
+    }
+
+    synchronized void acquire(final CacheKey key, final Bitmap bitmap) {
+        Resource resource = resources.get(bitmap);
+
+        if (resource == null) {
+            resource = new Resource(key);
+            resources.put(bitmap, resource);
+            bitmaps.put(key, new WeakReference<Bitmap>(bitmap));
+        }
+
+        resource.references++;
+    }
+
+    /**
+     * Keeps the bitmap out of the pool for good, once it's handed to code which may keep drawing it
+     * without holding a reference. The caller must hold a reference to it, or have just decoded it,
+     * so that it can't have been pooled already.
+     */
+    synchronized void export(final Bitmap bitmap) {
+        exported.put(bitmap, Boolean.TRUE);
+    }
+
+    /**
+     * Records that the memory cache doesn't hold the bitmap, if it's active.
+     *
+     * @return true if the bitmap is active, in which case releasing its last reference returns it
+     *         to the pool, or exported, in which case it must never be pooled
+     */
+    synchronized boolean markUncached(final Bitmap bitmap) {
+        if (exported.containsKey(bitmap))
+            return true;
+
+        final Resource resource = resources.get(bitmap);
+
+        if (resource == null)
+            return false;
+
+        resource.uncached = true;
+        return true;
+    }
+
+    /**
+     * @return true if this was the last reference to a bitmap the memory cache doesn't hold, which
+     *         the caller should now put in the pool
+     */
+    synchronized boolean release(final Bitmap bitmap) {
+        final Resource resource = resources.get(bitmap);
+
+        if (resource == null)
+            return false;
+
+        if (--resource.references > 0)
+            return false;
+
+        resources.remove(bitmap);
+
+        final WeakReference<Bitmap> reference = bitmaps.get(resource.key);
+        if (reference != null && reference.get() == bitmap)
+            bitmaps.remove(resource.key);
+
+        return resource.uncached && !exported.containsKey(bitmap);
+    }
+}
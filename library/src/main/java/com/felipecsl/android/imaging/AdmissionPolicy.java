@@ -0,0 +1,23 @@
+package com.felipecsl.android.imaging;
+
+/**
+ * Decides whether a new entry of a {@link MemoryLruImageCache} is worth evicting the least recently
+ * used one. Lets a cache keep its frequently reused images while a list is scrolled through
+ * images shown only once.
+ * <p>
+ * Calls are made from any thread, implementations must be thread safe.
+ */
+public interface AdmissionPolicy {
+
+    /**
+     * Records a lookup of the key, whether it is cached or not.
+     */
+    void recordAccess(CacheKey key);
+
+    /**
+     * @param candidate key of the entry being inserted
+     * @param victim key of the least recently used entry, evicted if the candidate is admitted
+     * @return true to insert the candidate, false to keep the victim and drop the candidate
+     */
+    boolean admit(CacheKey candidate, CacheKey victim);
+}
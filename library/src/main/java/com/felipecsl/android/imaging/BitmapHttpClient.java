@@ -18,14 +18,63 @@ public class BitmapHttpClient {
     private static final String TAG = "BitmapHttpClient";
     private static OkHttpClient client = new OkHttpClient();
 
+    /**
+     * Bodies already downloaded, looked up by the strong ETag of a response before its body is
+     * read. An ETag only identifies a version of one resource: many servers derive it from the
+     * modification time and size, so different images at different URLs may share one. Bodies
+     * shouldn't be reused across URLs unless the server is known to send content hashes.
+     */
+    public static interface ETagCallback {
+        /**
+         * @return the body previously downloaded for the url with this ETag, or null if unknown
+         */
+        byte[] getBody(URL url, String eTag);
+
+        void onBodyDownloaded(URL url, String eTag, byte[] body);
+    }
+
     public static byte[] get(final String urlString) {
+        return get(urlString, null);
+    }
+
+    /**
+     * Downloads the body of the provided url, unless the response carries a strong ETag whose body
+     * the callback already knows: the connection is then closed without reading the body, and the
+     * known body is returned instead. Known bodies whose length doesn't match the response's
+     * Content-Length are downloaded again.
+     * <p>
+     * This is not conditional revalidation: the request is a plain GET, the server starts sending
+     * the body anyway, and closing the connection mid-body keeps it from being reused. It only
+     * pays off for bodies much larger than a connection setup.
+     * 
+     * @param urlString URL to download
+     * @param callback known bodies by ETag, may be null
+     * @return the response body or null if the download failed
+     */
+    public static byte[] get(final String urlString, final ETagCallback callback) {
         InputStream in = null;
         try {
             final String decodedUrl = URLDecoder.decode(urlString, "UTF-8");
             final URL url = new URL(decodedUrl);
             final HttpURLConnection connection = client.open(url);
             in = connection.getInputStream();
-            return IOUtils.toByteArray(in);
+
+            final String eTag = callback != null ? getStrongETag(connection) : null;
+            if (eTag == null)
+                return IOUtils.toByteArray(in);
+
+            final byte[] knownBody = callback.getBody(url, eTag);
+            final int contentLength = connection.getContentLength();
+            if (knownBody != null && (contentLength < 0 || contentLength == knownBody.length)) {
+                if (ImageManager.LOG_CACHE_OPERATIONS)
+                    Log.d(TAG, "Body skipped, ETag " + eTag + " already downloaded: " + urlString);
+                connection.disconnect();
+                return knownBody;
+            }
+
+            final byte[] data = IOUtils.toByteArray(in);
+            callback.onBodyDownloaded(url, eTag, data);
+            return data;
         } catch (final MalformedURLException e) {
             Log.d(TAG, "Malformed URL", e);
         } catch (final OutOfMemoryError e) {
@@ -35,12 +84,17 @@ public class BitmapHttpClient {
         } catch (final IOException e) {
             Log.d(TAG, "IO exception", e);
         } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (final IOException e) {}
-            }
+            IOUtils.closeQuietly(in);
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the ETag of the response, or null if it has none or a weak one, which doesn't
+     *         guarantee identical bytes
+     */
+    private static String getStrongETag(final HttpURLConnection connection) {
+        final String eTag = connection.getHeaderField("ETag");
+        return eTag != null && eTag.length() > 0 && !eTag.startsWith("W/") ? eTag : null;
+    }
+}
@@ -0,0 +1,164 @@
+package com.felipecsl.android.imaging;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.felipecsl.android.Utils;
+
+/**
+ * Pool of mutable bitmaps nobody uses anymore, grouped by size class (their allocation size in
+ * bytes), to be reused by decoding through {@code BitmapFactory.Options.inBitmap} or as
+ * transformation output instead of allocating new ones.
+ * <p>
+ * Up to JellyBean MR2 a pooled bitmap is only handed out for the exact same dimensions and
+ * config. From KitKat on, any pooled bitmap large enough (up to {@link #MAX_SIZE_MULTIPLE} times
+ * the needed size) is reconfigured to the requested dimensions.
+ */
+public class BitmapPool {
+
+    public static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> sizeClasses = new TreeMap<Integer, LinkedList<Bitmap>>();
+    private final int maxSizeInKb;
+    private int sizeInBytes;
+    private int hitCount;
+    private int missCount;
+
+    @SuppressLint("NewApi")
+    private static class KitKatOrHigherUtils {
+        public static void reconfigure(final Bitmap bitmap, final int width, final int height, final Bitmap.Config config) {
+            bitmap.reconfigure(width, height, config);
+        }
+    }
+
+    public BitmapPool(final int maxSizeInKb) {
+        this.maxSizeInKb = maxSizeInKb;
+    }
+
+    /**
+     * Adds a bitmap to the pool. The caller must not use it anymore afterwards.
+     * <p>
+     * Immutable or recycled bitmaps can't be reused and are ignored.
+     */
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable())
+            return;
+
+        final int byteCount = Utils.getSizeInBytes(bitmap);
+
+        if (byteCount > maxSizeInKb * 1024)
+            return;
+
+        LinkedList<Bitmap> bitmaps = sizeClasses.get(byteCount);
+
+        if (bitmaps == null) {
+            bitmaps = new LinkedList<Bitmap>();
+            sizeClasses.put(byteCount, bitmaps);
+        } else if (bitmaps.contains(bitmap)) {
+            return;
+        }
+
+        bitmaps.addLast(bitmap);
+        sizeInBytes += byteCount;
+
+        trimToSize(maxSizeInKb * 1024);
+    }
+
+    /**
+     * Takes a bitmap with the provided dimensions and config from the pool. Its pixels are left as
+     * they were, callers not overwriting every pixel should erase it first.
+     *
+     * @return the bitmap or null if the pool has none that fits
+     */
+    public synchronized Bitmap get(final int width, final int height, Bitmap.Config config) {
+        if (config == null)
+            config = Bitmap.Config.ARGB_8888;
+
+        final boolean canReconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        final int byteCount = width * height * getBytesPerPixel(config);
+        final int maxByteCount = canReconfigure ? byteCount * MAX_SIZE_MULTIPLE : byteCount;
+
+        for (final Map.Entry<Integer, LinkedList<Bitmap>> entry : sizeClasses.subMap(byteCount, maxByteCount + 1).entrySet()) {
+            final Iterator<Bitmap> iterator = entry.getValue().iterator();
+
+            while (iterator.hasNext()) {
+                final Bitmap bitmap = iterator.next();
+
+                if (bitmap.getConfig() != config)
+                    continue;
+
+                if (!canReconfigure && (bitmap.getWidth() != width || bitmap.getHeight() != height))
+                    continue;
+
+                iterator.remove();
+                if (entry.getValue().isEmpty())
+                    sizeClasses.remove(entry.getKey());
+                sizeInBytes -= entry.getKey();
+
+                if (canReconfigure && (bitmap.getWidth() != width || bitmap.getHeight() != height))
+                    KitKatOrHigherUtils.reconfigure(bitmap, width, height, config);
+
+                hitCount++;
+                return bitmap;
+            }
+        }
+
+        missCount++;
+        return null;
+    }
+
+    public synchronized void trimToSize(final int maxSizeInBytes) {
+        // Drop the largest bitmaps first, they free the most memory and are the least likely to fit
+        while (sizeInBytes > maxSizeInBytes && !sizeClasses.isEmpty()) {
+            final Integer largest = sizeClasses.lastKey();
+            final LinkedList<Bitmap> bitmaps = sizeClasses.get(largest);
+            bitmaps.removeFirst();
+            if (bitmaps.isEmpty())
+                sizeClasses.remove(largest);
+            sizeInBytes -= largest;
+        }
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return number of requests served from the pool
+     */
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of requests the pool had no bitmap for
+     */
+    public synchronized int getMissCount() {
+        return missCount;
+    }
+
+    static int getBytesPerPixel(final Bitmap.Config config) {
+        if (config == null)
+            return 4;
+
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
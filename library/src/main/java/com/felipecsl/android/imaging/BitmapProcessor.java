@@ -2,16 +2,19 @@ package com.felipecsl.android.imaging;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 
+import android.annotation.SuppressLint;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
@@ -19,6 +22,8 @@ import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import com.felipecsl.android.Utils;
@@ -45,16 +50,34 @@ public class BitmapProcessor {
     };
 
     private final Context context;
+    private final BitmapPool bitmapPool;
+
+    @SuppressLint("NewApi")
+    private static class HoneycombOrHigherUtils {
+        public static void setMutable(final BitmapFactory.Options options) {
+            options.inMutable = true;
+        }
+    }
 
     public BitmapProcessor(final Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param bitmapPool pool the transformation outputs are taken from, may be null
+     */
+    public BitmapProcessor(final Context context, final BitmapPool bitmapPool) {
         this.context = context;
+        this.bitmapPool = bitmapPool;
     }
 
     public Bitmap getRoundedCorners(final Bitmap bitmap, final int radius) {
-        Bitmap output = null;
-        try {
-            output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_4444);
-        } catch (final OutOfMemoryError e) {
+        return getRoundedCorners(bitmap, radius, bitmapPool);
+    }
+
+    public static Bitmap getRoundedCorners(final Bitmap bitmap, final int radius, final BitmapPool bitmapPool) {
+        final Bitmap output = obtainBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_4444, bitmapPool);
+        if (output == null) {
             Log.e(TAG, "Out of memory in getRoundedCorners()");
             return null;
         }
@@ -77,6 +100,27 @@ public class BitmapProcessor {
         return output;
     }
 
+    /**
+     * Draws the bitmap scaled down to the provided size, with filtering, into a bitmap taken from
+     * the pool or newly allocated. The source bitmap is left untouched.
+     * 
+     * @return the scaled bitmap or null if it couldn't be allocated
+     */
+    public static Bitmap getScaledBitmap(final Bitmap bitmap, final int width, final int height, final BitmapPool bitmapPool) {
+        final Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap output = obtainBitmap(width, height, config, bitmapPool);
+        if (output == null) {
+            Log.e(TAG, "Out of memory in getScaledBitmap()");
+            return null;
+        }
+
+        final Canvas canvas = new Canvas(output);
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        canvas.drawBitmap(bitmap, null, new Rect(0, 0, width, height), paint);
+
+        return output;
+    }
+
     public Bitmap getAvatarThumbnail(final Bitmap b) {
         Bitmap finalBitmap;
         if (b.getHeight() > b.getWidth()) {
@@ -86,11 +130,39 @@ public class BitmapProcessor {
         } else {
             finalBitmap = b;
         }
-        finalBitmap = Bitmap.createScaledBitmap(finalBitmap, Utils.dpToPx(context, 50), Utils.dpToPx(context, 50), true);
+        final Bitmap croppedBitmap = finalBitmap;
+        finalBitmap = Bitmap.createScaledBitmap(croppedBitmap, Utils.dpToPx(context, 50), Utils.dpToPx(context, 50), true);
+        if (bitmapPool != null && croppedBitmap != b && croppedBitmap != finalBitmap)
+            bitmapPool.put(croppedBitmap);
 
         final int radius = (int)(finalBitmap.getHeight() * 0.07f);
 
-        return getRoundedCorners(finalBitmap, radius);
+        final Bitmap output = getRoundedCorners(finalBitmap, radius);
+        if (bitmapPool != null && output != null && finalBitmap != b)
+            bitmapPool.put(finalBitmap);
+
+        return output;
+    }
+
+    /**
+     * Takes a cleared bitmap from the pool or allocates a new one.
+     * 
+     * @return the bitmap or null if it couldn't be allocated
+     */
+    private static Bitmap obtainBitmap(final int width, final int height, final Bitmap.Config config, final BitmapPool bitmapPool) {
+        if (bitmapPool != null) {
+            final Bitmap pooled = bitmapPool.get(width, height, config);
+            if (pooled != null) {
+                pooled.eraseColor(Color.TRANSPARENT);
+                return pooled;
+            }
+        }
+
+        try {
+            return Bitmap.createBitmap(width, height, config);
+        } catch (final OutOfMemoryError e) {
+            return null;
+        }
     }
 
     /**
@@ -141,10 +213,12 @@ public class BitmapProcessor {
     }
 
     public Bitmap getCircle(final Bitmap bitmap) {
-        Bitmap output = null;
-        try {
-            output = Bitmap.createBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_4444);
-        } catch (final OutOfMemoryError e) {
+        return getCircle(bitmap, bitmapPool);
+    }
+
+    public static Bitmap getCircle(final Bitmap bitmap, final BitmapPool bitmapPool) {
+        final Bitmap output = obtainBitmap(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_4444, bitmapPool);
+        if (output == null) {
             Log.e(TAG, "Out of memory in getCircle()");
             return null;
         }
@@ -164,6 +238,34 @@ public class BitmapProcessor {
         return output;
     }
 
+    /**
+     * Applies the rounded corners or circle transformation requested in the job options.
+     * <p>
+     * The source bitmap must be owned by the caller: once transformed, it goes back to the pool.
+     * 
+     * @return the transformed bitmap, or the source bitmap if there's nothing to apply or the
+     *         transformation failed
+     */
+    public static Bitmap transform(final Bitmap bitmap, final JobOptions options, final BitmapPool bitmapPool) {
+        if (bitmap == null)
+            return null;
+
+        Bitmap output = null;
+
+        if (options.roundedCorners)
+            output = getRoundedCorners(bitmap, options.radius, bitmapPool);
+        else if (options.circle)
+            output = getCircle(bitmap, bitmapPool);
+
+        if (output == null)
+            return bitmap;
+
+        if (bitmapPool != null)
+            bitmapPool.put(bitmap);
+
+        return output;
+    }
+
     /**
      * Calculate max sampleSize logarithmically to obtain a ^2 sample
      * <p>
@@ -226,6 +328,83 @@ public class BitmapProcessor {
         }
     }
 
+    public static Bitmap decodeFileDescriptor(final FileDescriptor fileDescriptor) {
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in decodeFileDescriptor()", e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes the stream into a bitmap from the pool, if it has one that fits. The bounds are read
+     * first, so the stream must support mark/reset, otherwise this falls back to a plain decode.
+     */
+    public static Bitmap decodeStream(final InputStream stream, final BitmapPool bitmapPool) {
+        if (bitmapPool == null || !stream.markSupported())
+            return decodeStream(stream);
+
+        final BitmapFactory.Options options = decodeBitmapBounds(stream);
+
+        if (options == null)
+            return null;
+
+        options.inJustDecodeBounds = false;
+        useBitmapPool(options, bitmapPool);
+
+        try {
+            try {
+                return BitmapFactory.decodeStream(stream, null, options);
+            } catch (final IllegalArgumentException e) {
+                if (options.inBitmap == null)
+                    throw e;
+
+                // inBitmap couldn't be reused, can only retry if the stream wasn't consumed
+                bitmapPool.put(options.inBitmap);
+                options.inBitmap = null;
+                stream.reset();
+                return BitmapFactory.decodeStream(stream, null, options);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "decodeStream()", e);
+            return null;
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in decodeStream()", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sets {@code options.inBitmap} to a pooled bitmap fitting the image described by the bounds
+     * in options, if the API level allows it. Before KitKat only bitmaps of the same size can be
+     * reused, so sampled decodes don't use the pool.
+     */
+    @SuppressLint("NewApi")
+    private static void useBitmapPool(final BitmapFactory.Options options, final BitmapPool bitmapPool) {
+        if (bitmapPool == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)
+            return;
+
+        // Only mutable, non purgeable bitmaps can be reused later
+        HoneycombOrHigherUtils.setMutable(options);
+        options.inPurgeable = false;
+
+        final int sampleSize = Math.max(1, options.inSampleSize);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sampleSize != 1)
+            return;
+
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return;
+
+        // The decoder may round the sample size down to a power of two, size for the larger result
+        final int scale = Integer.highestOneBit(sampleSize);
+        final int width = (options.outWidth + scale - 1) / scale;
+        final int height = (options.outHeight + scale - 1) / scale;
+
+        options.inBitmap = bitmapPool.get(width, height, options.inPreferredConfig);
+    }
+
     public static void decodeSampledBitmapFromRemoteUrl(final Context context,
                                                         final String urlString,
                                                         final int reqWidth,
@@ -249,22 +428,152 @@ public class BitmapProcessor {
                                                         final SamplingMethod samplingMethod,
                                                         final ImageManagerCallback callback) {
 
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        options.inPurgeable = true;
-        options.inDither = false;
-        options.inInputShareable = true;
-
-        byte[] binaryData = BitmapHttpClient.get(urlString);
+        // The body is downloaded only once, both decoding passes below read from the same buffer
+        final byte[] binaryData = BitmapHttpClient.get(urlString);
 
         if (binaryData == null) {
             callback.onLoadFailed(LoadedFrom.NETWORK, new Exception("binaryData == null"));
             return;
         }
 
+        if (ImageManager.LOG_CACHE_OPERATIONS)
+            Log.d(TAG, "Image downloaded: " + urlString);
+
+        callback.onBitmapLoaded(decodeSampledByteArray(binaryData, reqWidth, reqHeight, samplingMethod), LoadedFrom.NETWORK);
+    }
+
+    /**
+     * Picks the config to decode an image to.
+     * 
+     * @param jobOptions options of the job, null for the default ARGB_8888
+     * @param mimeType the image's mime type as decoded into {@code BitmapFactory.Options.outMimeType},
+     *            null if unknown
+     * @return RGB_565 in auto config mode for images that can't be transparent and aren't rounded
+     *         or cropped to a circle, the job's preferred config otherwise
+     */
+    public static Bitmap.Config resolveConfig(final JobOptions jobOptions, final String mimeType) {
+        if (jobOptions == null || jobOptions.preferredConfig == null)
+            return Bitmap.Config.ARGB_8888;
+
+        if (jobOptions.autoConfig && !jobOptions.roundedCorners && !jobOptions.circle && "image/jpeg".equals(mimeType))
+            return Bitmap.Config.RGB_565;
+
+        return jobOptions.preferredConfig;
+    }
+
+    private static void setPreferredConfig(final BitmapFactory.Options options, final JobOptions jobOptions) {
+        options.inPreferredConfig = resolveConfig(jobOptions, options.outMimeType);
+        // Smooths the banding of gradients reduced to 16 bits
+        options.inDither = options.inPreferredConfig == Bitmap.Config.RGB_565;
+    }
+
+    /**
+     * Decodes a sampled Bitmap from an already downloaded image in the requested width and height.
+     * <p>
+     * The bounds are read from the image header in the buffer, so no extra copy or request is needed.
+     * 
+     * @param binaryData encoded image bytes
+     * @param reqWidth Requested width, 0 to keep the original width
+     * @param reqHeight Requested height, 0 to keep the original height
+     * @param samplingMethod
+     * @return the decoded Bitmap or null if it could not be decoded
+     */
+    public static Bitmap decodeSampledByteArray(final byte[] binaryData,
+                                                final int reqWidth,
+                                                final int reqHeight,
+                                                final SamplingMethod samplingMethod) {
+
+        return decodeSampledByteArray(binaryData, reqWidth, reqHeight, samplingMethod, null);
+    }
+
+    /**
+     * Same as {@link #decodeSampledByteArray(byte[], int, int, SamplingMethod)}, decoding into a
+     * bitmap taken from the pool when it has one that fits.
+     */
+    public static Bitmap decodeSampledByteArray(final byte[] binaryData,
+                                                final int reqWidth,
+                                                final int reqHeight,
+                                                final SamplingMethod samplingMethod,
+                                                final BitmapPool bitmapPool) {
+
+        return decodeSampledByteArray(binaryData, reqWidth, reqHeight, samplingMethod, bitmapPool, null);
+    }
+
+    /**
+     * Same as {@link #decodeSampledByteArray(byte[], int, int, SamplingMethod, BitmapPool)},
+     * decoding to the config chosen by {@link #resolveConfig(JobOptions, String)}.
+     */
+    public static Bitmap decodeSampledByteArray(final byte[] binaryData,
+                                                final int reqWidth,
+                                                final int reqHeight,
+                                                final SamplingMethod samplingMethod,
+                                                final BitmapPool bitmapPool,
+                                                final JobOptions jobOptions) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = newSampledDecodeOptions();
+        options.inJustDecodeBounds = true;
+
         decodeByteArray(binaryData, options);
 
+        return decodeSampledByteArray(binaryData, options, reqWidth, reqHeight, samplingMethod, bitmapPool, jobOptions);
+    }
+
+    /**
+     * Same as
+     * {@link #decodeSampledByteArray(byte[], int, int, SamplingMethod, BitmapPool, JobOptions)}
+     * for an image whose dimensions and mime type are already known, such as a disk cache entry
+     * with its metadata. The image is decoded in a single pass, without reading its bounds first.
+     */
+    public static Bitmap decodeSampledByteArray(final byte[] binaryData,
+                                                final int imageWidth,
+                                                final int imageHeight,
+                                                final String mimeType,
+                                                final int reqWidth,
+                                                final int reqHeight,
+                                                final SamplingMethod samplingMethod,
+                                                final BitmapPool bitmapPool,
+                                                final JobOptions jobOptions) {
+
+        final BitmapFactory.Options options = newSampledDecodeOptions();
+        options.outWidth = imageWidth;
+        options.outHeight = imageHeight;
+        options.outMimeType = mimeType;
+
+        return decodeSampledByteArray(binaryData, options, reqWidth, reqHeight, samplingMethod, bitmapPool, jobOptions);
+    }
+
+    private static BitmapFactory.Options newSampledDecodeOptions() {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPurgeable = true;
+        options.inDither = false;
+        options.inInputShareable = true;
+        return options;
+    }
+
+    /**
+     * Decodes the image whose bounds were read into options.
+     */
+    private static Bitmap decodeSampledByteArray(final byte[] binaryData,
+                                                 final BitmapFactory.Options options,
+                                                 final int reqWidth,
+                                                 final int reqHeight,
+                                                 final SamplingMethod samplingMethod,
+                                                 final BitmapPool bitmapPool,
+                                                 final JobOptions jobOptions) {
+        prepareSampledDecode(options, reqWidth, reqHeight, samplingMethod, jobOptions);
+
+        return decodeByteArray(binaryData, options, bitmapPool);
+    }
+
+    /**
+     * Sets the sample size and config to decode the image whose bounds were read into options.
+     */
+    private static void prepareSampledDecode(final BitmapFactory.Options options,
+                                             final int reqWidth,
+                                             final int reqHeight,
+                                             final SamplingMethod samplingMethod,
+                                             final JobOptions jobOptions) {
         int width = reqWidth;
         int height = reqHeight;
 
@@ -280,14 +589,73 @@ public class BitmapProcessor {
 
         // Decode bitmap with inSampleSize set
         options.inJustDecodeBounds = false;
+        setPreferredConfig(options, jobOptions);
+    }
+
+    /**
+     * Same as
+     * {@link #decodeSampledByteArray(byte[], int, int, String, int, int, SamplingMethod, BitmapPool, JobOptions)}
+     * for an image file, decoded straight from its descriptor instead of being copied into the
+     * Java heap first. The descriptor's position is left unchanged.
+     * 
+     * @param imageWidth width of the image, -1 if unknown
+     * @param imageHeight height of the image, -1 if unknown
+     * @param mimeType mime type of the image, null if unknown
+     */
+    public static Bitmap decodeSampledFileDescriptor(final FileDescriptor fileDescriptor,
+                                                     final int imageWidth,
+                                                     final int imageHeight,
+                                                     final String mimeType,
+                                                     final int reqWidth,
+                                                     final int reqHeight,
+                                                     final SamplingMethod samplingMethod,
+                                                     final BitmapPool bitmapPool,
+                                                     final JobOptions jobOptions) {
+        try {
+            return decodeSampledFileDescriptorOrThrow(fileDescriptor, imageWidth, imageHeight, mimeType, reqWidth, reqHeight,
+                    samplingMethod, bitmapPool, jobOptions);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in decodeSampledFileDescriptor()", e);
+            return null;
+        }
+    }
 
-        binaryData = BitmapHttpClient.get(urlString);
+    private static Bitmap decodeSampledFileDescriptorOrThrow(final FileDescriptor fileDescriptor,
+                                                             final int imageWidth,
+                                                             final int imageHeight,
+                                                             final String mimeType,
+                                                             final int reqWidth,
+                                                             final int reqHeight,
+                                                             final SamplingMethod samplingMethod,
+                                                             final BitmapPool bitmapPool,
+                                                             final JobOptions jobOptions) {
+        final BitmapFactory.Options options = newSampledDecodeOptions();
+        // Don't keep the file mapped by purgeable bitmaps once decoded
+        options.inInputShareable = false;
+
+        if (imageWidth > 0 && imageHeight > 0) {
+            options.outWidth = imageWidth;
+            options.outHeight = imageHeight;
+            options.outMimeType = mimeType;
+        } else {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
 
-        if (ImageManager.LOG_CACHE_OPERATIONS)
-            Log.d(TAG, "Image downloaded: " + urlString);
+        prepareSampledDecode(options, reqWidth, reqHeight, samplingMethod, jobOptions);
+        useBitmapPool(options, bitmapPool);
 
-        if (binaryData != null)
-            callback.onBitmapLoaded(decodeByteArray(binaryData, options), LoadedFrom.NETWORK);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null)
+                throw e;
+
+            // inBitmap couldn't be reused for this image, the descriptor wasn't moved
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
     }
 
     public static void decodeSampledBitmapFromLocalUri(final Context context,
@@ -343,22 +711,57 @@ public class BitmapProcessor {
                                                          final int reqHeight,
                                                          final SamplingMethod samplingMethod,
                                                          final String contentPath) {
+
+        return decodeSampledBitmapFromLocalUri(context, uri, reqWidth, reqHeight, samplingMethod, contentPath, null);
+    }
+
+    /**
+     * Same as {@link #decodeSampledBitmapFromLocalUri(Context, Uri, int, int, SamplingMethod, String)},
+     * decoding into a bitmap taken from the pool when it has one that fits. The unrotated bitmap
+     * of rotated JPEGs goes back to the pool.
+     */
+    public static Bitmap decodeSampledBitmapFromLocalUri(final Context context,
+                                                         final Uri uri,
+                                                         final int reqWidth,
+                                                         final int reqHeight,
+                                                         final SamplingMethod samplingMethod,
+                                                         final String contentPath,
+                                                         final BitmapPool bitmapPool) {
+
+        return decodeSampledBitmapFromLocalUri(context, uri, reqWidth, reqHeight, samplingMethod, contentPath, bitmapPool, null);
+    }
+
+    /**
+     * Same as
+     * {@link #decodeSampledBitmapFromLocalUri(Context, Uri, int, int, SamplingMethod, String, BitmapPool)},
+     * decoding to the config chosen by {@link #resolveConfig(JobOptions, String)}.
+     */
+    public static Bitmap decodeSampledBitmapFromLocalUri(final Context context,
+                                                         final Uri uri,
+                                                         final int reqWidth,
+                                                         final int reqHeight,
+                                                         final SamplingMethod samplingMethod,
+                                                         final String contentPath,
+                                                         final BitmapPool bitmapPool,
+                                                         final JobOptions jobOptions) {
+        ParcelFileDescriptor fileDescriptor = null;
         InputStream inputStream = null;
         Bitmap bitmap = null;
 
         try {
-            inputStream = context.getContentResolver().openInputStream(uri);
+            fileDescriptor = openFileDescriptor(context, uri);
 
-            if (inputStream == null)
-                return null;
-
-            final BitmapFactory.Options factoryOptions = decodeBitmapBounds(inputStream);
-            factoryOptions.inSampleSize = calculateSampleSize(factoryOptions, reqWidth, reqHeight, samplingMethod);
-            factoryOptions.inJustDecodeBounds = false;
+            if (fileDescriptor != null) {
+                // Both passes read the file through the same descriptor, no stream is opened
+                bitmap = decodeSampledFileDescriptorOrThrow(fileDescriptor.getFileDescriptor(), -1, -1, null, reqWidth,
+                        reqHeight, samplingMethod, bitmapPool, jobOptions);
+            }
 
-            inputStream.close();
-            inputStream = context.getContentResolver().openInputStream(uri);
-            bitmap = BitmapFactory.decodeStream(inputStream, null, factoryOptions);
+            // Also when the descriptor couldn't be read twice, like the descriptor of a pipe
+            if (bitmap == null) {
+                bitmap = decodeSampledStreamFromLocalUri(context, uri, reqWidth, reqHeight, samplingMethod, bitmapPool,
+                        jobOptions);
+            }
 
             // @note This usually means the Stream is invalid, but recent developments have
             // made me believe there may be instances where this happens due to OOM and
@@ -370,10 +773,13 @@ public class BitmapProcessor {
             if (ImageUtil.isJPG(contentPath)) {
                 final Bitmap rotatedBitmap = ImageUtil.rotateBitmapToExifOrientation(context, contentPath, bitmap);
 
-                if (rotatedBitmap == null)
+                if (rotatedBitmap == null) {
                     Log.e(TAG, "decodeUriWithSampling: rotateBitmapToExifOrientation returned null Bitmap!");
-                else
+                } else {
+                    if (bitmapPool != null && rotatedBitmap != bitmap)
+                        bitmapPool.put(bitmap);
                     bitmap = rotatedBitmap;
+                }
             }
 
         } catch (final OutOfMemoryError e) {
@@ -386,7 +792,8 @@ public class BitmapProcessor {
                 final int newWidth = (int)(reqWidth * .75);
                 final int newHeight = (int)(reqHeight * .75);
                 Log.w(TAG, "OutOfMemoryError in decodeUriWithSampling(...) trying with " + newWidth + "x" + newHeight);
-                bitmap = decodeSampledBitmapFromLocalUri(context, uri, newWidth, newHeight, samplingMethod, contentPath);
+                bitmap = decodeSampledBitmapFromLocalUri(context, uri, newWidth, newHeight, samplingMethod, contentPath, bitmapPool,
+                        jobOptions);
             }
 
         } catch (final FileNotFoundException e) {
@@ -398,6 +805,70 @@ public class BitmapProcessor {
         } catch (final Exception e) {
             Log.e(TAG, "Exception in decodeUriWithSampling()", e);
 
+        } finally {
+            try {
+                if (fileDescriptor != null)
+                    fileDescriptor.close();
+            } catch (final IOException e) {}
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * @return a read only descriptor of the file behind the uri, or null if its provider can't
+     *         open one, in which case it can still be read as a stream
+     */
+    private static ParcelFileDescriptor openFileDescriptor(final Context context, final Uri uri) {
+        try {
+            return context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (final FileNotFoundException e) {
+            return null;
+        } catch (final SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a local uri through streams, for providers that can't open a file descriptor.
+     */
+    private static Bitmap decodeSampledStreamFromLocalUri(final Context context,
+                                                          final Uri uri,
+                                                          final int reqWidth,
+                                                          final int reqHeight,
+                                                          final SamplingMethod samplingMethod,
+                                                          final BitmapPool bitmapPool,
+                                                          final JobOptions jobOptions) throws IOException {
+        InputStream inputStream = null;
+        Bitmap bitmap = null;
+
+        try {
+            inputStream = context.getContentResolver().openInputStream(uri);
+
+            if (inputStream == null)
+                return null;
+
+            final BitmapFactory.Options factoryOptions = decodeBitmapBounds(inputStream);
+            factoryOptions.inSampleSize = calculateSampleSize(factoryOptions, reqWidth, reqHeight, samplingMethod);
+            factoryOptions.inJustDecodeBounds = false;
+            setPreferredConfig(factoryOptions, jobOptions);
+
+            inputStream.close();
+            inputStream = context.getContentResolver().openInputStream(uri);
+            useBitmapPool(factoryOptions, bitmapPool);
+            try {
+                bitmap = BitmapFactory.decodeStream(inputStream, null, factoryOptions);
+            } catch (final IllegalArgumentException e) {
+                if (factoryOptions.inBitmap == null)
+                    throw e;
+
+                // inBitmap couldn't be reused for this image, decode again from a new stream
+                bitmapPool.put(factoryOptions.inBitmap);
+                factoryOptions.inBitmap = null;
+                inputStream.close();
+                inputStream = context.getContentResolver().openInputStream(uri);
+                bitmap = BitmapFactory.decodeStream(inputStream, null, factoryOptions);
+            }
         } finally {
             try {
                 if (inputStream != null)
@@ -417,6 +888,26 @@ public class BitmapProcessor {
         }
     }
 
+    /**
+     * Decodes into a bitmap from the pool, if it has one fitting the bounds already decoded into
+     * options (outWidth, outHeight and inSampleSize).
+     */
+    public static Bitmap decodeByteArray(final byte[] data, final BitmapFactory.Options options, final BitmapPool bitmapPool) {
+        useBitmapPool(options, bitmapPool);
+
+        try {
+            return decodeByteArray(data, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null)
+                throw e;
+
+            // inBitmap couldn't be reused for this image
+            bitmapPool.put(options.inBitmap);
+            options.inBitmap = null;
+            return decodeByteArray(data, options);
+        }
+    }
+
     /**
      * Decodes Bitmap metadata without placing the actual raw bitmap in memory.
      * 
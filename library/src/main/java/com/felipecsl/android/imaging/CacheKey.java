@@ -0,0 +1,196 @@
+package com.felipecsl.android.imaging;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.graphics.Bitmap;
+
+/**
+ * Identifies a display ready image: the source URL plus everything applied to it (requested size,
+ * scale type, rounded corners or circle, decoding config).
+ * <p>
+ * Keys are cheap to build on every bind: the fields are copied from the {@link JobOptions} and the
+ * hash code is computed once. The disk cache, which stores the original bytes, is keyed by a fixed
+ * length digest of the URL only.
+ */
+public final class CacheKey {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String url;
+    private final int width;
+    private final int height;
+    private final ScaleType scaleType;
+    private final int radius;
+    private final boolean circle;
+    private final Bitmap.Config config;
+    private final boolean autoConfig;
+    private final int hashCode;
+    private String diskKey;
+
+    public CacheKey(final String url, final JobOptions options) {
+        this.url = url;
+        width = Math.max(0, options.requestedWidth);
+        height = Math.max(0, options.requestedHeight);
+        scaleType = options.scaleType != null ? options.scaleType : ScaleType.NONE;
+        radius = options.roundedCorners ? options.radius : -1;
+        circle = !options.roundedCorners && options.circle;
+        config = options.preferredConfig != null ? options.preferredConfig : Bitmap.Config.ARGB_8888;
+        autoConfig = options.autoConfig;
+
+        int hash = url.hashCode();
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + scaleType.nativeInt;
+        hash = 31 * hash + radius;
+        hash = 31 * hash + (circle ? 1 : 0);
+        hash = 31 * hash + config.ordinal();
+        hash = 31 * hash + (autoConfig ? 1 : 0);
+        hashCode = hash;
+    }
+
+    /**
+     * Key for the image at the provided url, as downloaded.
+     */
+    public static CacheKey forUrl(final String url) {
+        return new CacheKey(url, new JobOptions());
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return job options giving this key back for the same url
+     */
+    public JobOptions toJobOptions() {
+        final JobOptions options = new JobOptions(width, height);
+        options.scaleType = scaleType;
+        options.roundedCorners = radius >= 0;
+        if (options.roundedCorners)
+            options.radius = radius;
+        options.circle = circle;
+        options.preferredConfig = config;
+        options.autoConfig = autoConfig;
+        return options;
+    }
+
+    /**
+     * Whether the image for this key, downscaled, gives the image for the target key: same URL,
+     * scale type, decoding config and circle crop, both sizes at least as large as the target's,
+     * and no rounded corners, whose radius wouldn't survive the scaling.
+     */
+    public boolean canBeScaledTo(final CacheKey target) {
+        return target.width > 0 && target.height > 0
+               && width >= target.width
+               && height >= target.height
+               && radius < 0 && target.radius < 0
+               && circle == target.circle
+               && scaleType == target.scaleType
+               && config == target.config
+               && autoConfig == target.autoConfig
+               && url.equals(target.url);
+    }
+
+    /**
+     * @return the disk cache key for the original bytes of this key's URL
+     */
+    public String getDiskKey() {
+        if (diskKey == null) {
+            diskKey = getDiskKey(url);
+        }
+        return diskKey;
+    }
+
+    /**
+     * Disk cache key for the original bytes of an URL: the hex MD5 digest of the URL, which is
+     * collision free in practice and valid for DiskLruCache whatever the URL contains.
+     */
+    public static String getDiskKey(final String url) {
+        try {
+            return md5Hex(url.getBytes("UTF-8"));
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Disk cache key the original bytes of an image are stored under, whatever URL they were
+     * downloaded from: the hex MD5 digest of the bytes.
+     */
+    public static String getContentKey(final byte[] data) {
+        return md5Hex(data);
+    }
+
+    private static String md5Hex(final byte[] bytes) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("MD5").digest(bytes);
+            final char[] hex = new char[digest.length * 2];
+
+            for (int i = 0; i < digest.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+            }
+
+            return new String(hex);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o)
+            return true;
+
+        if (!(o instanceof CacheKey))
+            return false;
+
+        final CacheKey other = (CacheKey)o;
+
+        return hashCode == other.hashCode
+               && width == other.width
+               && height == other.height
+               && scaleType == other.scaleType
+               && radius == other.radius
+               && circle == other.circle
+               && config == other.config
+               && autoConfig == other.autoConfig
+               && url.equals(other.url);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder(url.length() + 24).append(url)
+                .append('-').append(width).append('x').append(height);
+
+        if (scaleType != ScaleType.NONE)
+            builder.append('-').append(scaleType.nativeInt);
+
+        if (radius >= 0)
+            builder.append("-r").append(radius);
+        else if (circle)
+            builder.append("-c");
+
+        if (autoConfig)
+            builder.append("-auto");
+        else if (config != Bitmap.Config.ARGB_8888)
+            builder.append('-').append(config.name());
+
+        return builder.toString();
+    }
+}
@@ -13,11 +13,37 @@
  */
 package com.felipecsl.android.imaging;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Log;
 
+import com.felipecsl.android.Utils;
 import com.felipecsl.android.imaging.MemoryLruImageCache.MemoryCacheEntryRemovedCallback;
 
 /**
@@ -28,30 +54,129 @@ import com.felipecsl.android.imaging.MemoryLruImageCache.MemoryCacheEntryRemoved
  * 
  * @author Matias Pequeno / Felipe Lima
  */
-public class CacheManager implements MemoryCacheEntryRemovedCallback {
+public class CacheManager implements MemoryCacheEntryRemovedCallback, ComponentCallbacks {
 
     private static final String TAG = "CacheManager";
+    // How long the memory cache stays shrunk after the last trim request before growing back
+    private static final long MEMORY_RECOVERY_DELAY_MS = 30 * 1000;
+    private static final long HOT_SET_SAVE_INTERVAL_MS = 60 * 1000;
+    private static final int HOT_SET_MAX_ITEMS = 128;
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
     private final MemoryLruImageCache memoryCache;
     private final DiskLruImageCache diskCache;
-    private static final HandlerThread handlerThread;
-    private static final Handler diskCacheHandler;
-
-    static {
-        handlerThread = new HandlerThread("Cache Manager Disk Access Thread");
-        handlerThread.start();
-        diskCacheHandler = new Handler(handlerThread.getLooper());
-    }
+    private final ImagePipeline pipeline;
+    private final BitmapPool bitmapPool;
+    private final ActiveResources activeResources = new ActiveResources();
+    // Per cache manager, since a job's result is acquired from and cached in this manager's caches
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+    private final DiskWriteQueue diskWriteQueue;
+    // Keys held by the memory cache for each URL, to find a larger variant of a missing image
+    private final Map<String, Set<CacheKey>> variants = new HashMap<String, Set<CacheKey>>();
+    private int variantHitCount;
+    private final AtomicInteger diskIndexSkipCount = new AtomicInteger();
+    private final Runnable restoreMemoryCacheSize = new Runnable() {
+        @Override
+        public void run() {
+            memoryCache.setSizeMultiplier(1);
+        }
+    };
+    private File hotSetFile;
+    // Keys last saved, most recently used first, null to save them next time
+    private List<CacheKey> savedHotSetKeys;
+    // Single thread, so that saves are written in order and never dropped by the disk stage
+    private final ThreadPoolExecutor hotSetExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private final AtomicInteger prefetchCount = new AtomicInteger();
+    private final AtomicInteger eTagReuseCount = new AtomicInteger();
+    // Hosts whose ETags are content hashes, see addContentHashETagHost()
+    private final Set<String> contentHashETagHosts = Collections.synchronizedSet(new HashSet<String>());
+    private final Runnable saveHotSetPeriodically = new Runnable() {
+        @Override
+        public void run() {
+            saveHotSet();
+            uiHandler.postDelayed(this, HOT_SET_SAVE_INTERVAL_MS);
+        }
+    };
 
     public static interface CacheManagerCallback {
         void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source);
     }
 
+    /**
+     * Looks up the bodies of a host sending content hash ETags by their "ETag <host> <etag>" key,
+     * and remembers the key of a downloaded body, which is queued as an alias of the body once the
+     * body itself is queued. One per download, see fetch().
+     */
+    private class ContentHashETagCallback implements BitmapHttpClient.ETagCallback {
+        private String downloadedETagKey;
+
+        @Override
+        public byte[] getBody(final URL url, final String eTag) {
+            final String key = getETagDiskKey(url, eTag);
+            byte[] body = diskWriteQueue.get(key);
+
+            if (body == null && diskCache.mightContain(key))
+                body = diskCache.getBytes(key);
+
+            if (body != null)
+                eTagReuseCount.incrementAndGet();
+
+            return body;
+        }
+
+        @Override
+        public void onBodyDownloaded(final URL url, final String eTag, final byte[] body) {
+            downloadedETagKey = getETagDiskKey(url, eTag);
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static class IceCreamSandwichOrHigherUtils {
+        public static void registerComponentCallbacks(final Context context, final CacheManager cacheManager) {
+            context.registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(final int level) {
+                    cacheManager.onTrimMemory(level);
+                }
+
+                @Override
+                public void onLowMemory() {
+                    cacheManager.onLowMemory();
+                }
+
+                @Override
+                public void onConfigurationChanged(final Configuration newConfig) {
+                    cacheManager.onConfigurationChanged(newConfig);
+                }
+            });
+        }
+    }
+
     /**
      *
      */
     public CacheManager(final MemoryLruImageCache memoryCache, final DiskLruImageCache diskCache) {
+        this(memoryCache, diskCache, ImagePipeline.getDefault());
+    }
+
+    /**
+     * @param pipeline stages used for disk reads, network fetches and decoding on memory misses
+     */
+    public CacheManager(final MemoryLruImageCache memoryCache, final DiskLruImageCache diskCache, final ImagePipeline pipeline) {
+        this(memoryCache, diskCache, pipeline, new BitmapPool(memoryCache.maxSize() / 4));
+    }
+
+    /**
+     * @param bitmapPool pool receiving the bitmaps evicted from the memory cache, and used by
+     *            decoding
+     */
+    public CacheManager(final MemoryLruImageCache memoryCache, final DiskLruImageCache diskCache, final ImagePipeline pipeline,
+                        final BitmapPool bitmapPool) {
         this.diskCache = diskCache;
         this.memoryCache = memoryCache;
+        this.pipeline = pipeline;
+        this.bitmapPool = bitmapPool;
+        diskWriteQueue = diskCache != null ? new DiskWriteQueue(diskCache, pipeline.getDiskStage()) : null;
 
         memoryCache.setEntryRemovedCallback(this);
     }
@@ -64,81 +189,740 @@ public class CacheManager implements MemoryCacheEntryRemovedCallback {
         return diskCache;
     }
 
+    public ImagePipeline getPipeline() {
+        return pipeline;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    public ActiveResources getActiveResources() {
+        return activeResources;
+    }
+
+    /**
+     * @return the jobs loading images into this cache manager, which requests for the same cache
+     *         key join instead of starting their own
+     */
+    public InFlightRequests getInFlightRequests() {
+        return inFlightRequests;
+    }
+
+    /**
+     * @return the queue of downloaded images waiting to be written to the disk cache, null without
+     *         a disk cache
+     */
+    public DiskWriteQueue getDiskWriteQueue() {
+        return diskWriteQueue;
+    }
+
+    /**
+     * @return number of images served by downscaling a larger variant held in memory
+     */
+    public int getVariantHitCount() {
+        synchronized (variants) {
+            return variantHitCount;
+        }
+    }
+
+    /**
+     * @return number of disk lookups skipped because the disk cache index ruled the image out
+     */
+    public int getDiskIndexSkipCount() {
+        return diskIndexSkipCount.get();
+    }
+
     @Override
-    public void onEntryRemoved(final boolean evicted, final String key, final Bitmap oldValue, final Bitmap newValue) {
-        if (oldValue == null || diskCache == null)
+    public void onEntryRemoved(final boolean evicted, final CacheKey key, final Bitmap oldValue, final Bitmap newValue) {
+        if (newValue == null)
+            removeVariant(key);
+
+        // The original bytes were already written to the disk cache when they were downloaded (see
+        // fetch()), so the bitmap can be reused right away unless it's still displayed, in which
+        // case it goes back to the pool once its last drawable releases it
+        if (oldValue == null || oldValue == newValue || activeResources.markUncached(oldValue))
             return;
 
-        // Add the just evicted memory cache entry to disk cache (2nd level cache)
-        final String diskCacheKey = sanitizeUrl(key);
+        bitmapPool.put(oldValue);
+    }
+
+    /**
+     * Registers this cache manager with the application to be notified of memory pressure (see
+     * {@link #onTrimMemory(int)}). Trim notifications are only delivered from Ice Cream Sandwich
+     * on, before that apps can forward {@code onLowMemory()} themselves.
+     */
+    public void registerComponentCallbacks(final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            IceCreamSandwichOrHigherUtils.registerComponentCallbacks(context.getApplicationContext(), this);
+        }
+    }
+
+    /**
+     * Releases memory according to a {@link ComponentCallbacks2} trim level:
+     * <ul>
+     * <li>the bitmap pool is emptied while the process runs moderately low on memory,</li>
+     * <li>the memory cache shrinks to half its size when the UI is hidden, the process goes to the
+     * background or runs low on memory,</li>
+     * <li>both are emptied when memory is critically low or the process is about to be killed.</li>
+     * </ul>
+     * The memory cache grows back to its full size once no trim was requested for a while.
+     */
+    public void onTrimMemory(final int level) {
+        if (ImageManager.LOG_CACHE_OPERATIONS)
+            Log.d(TAG, "onTrimMemory(" + level + ")");
 
-        if (!diskCache.containsKey(diskCacheKey))
-            diskCache.put(diskCacheKey, oldValue);
+        // Saved before the memory cache is trimmed, the process may not come back from the background
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)
+            saveHotSet();
+
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            memoryCache.setSizeMultiplier(0);
+            bitmapPool.clear();
+            if (diskWriteQueue != null)
+                diskWriteQueue.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            memoryCache.setSizeMultiplier(Math.min(memoryCache.getSizeMultiplier(), 0.5f));
+            bitmapPool.trimToSize(bitmapPool.getSizeInBytes() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            bitmapPool.clear();
+            return;
+        } else {
+            return;
+        }
+
+        uiHandler.removeCallbacks(restoreMemoryCacheSize);
+        uiHandler.postDelayed(restoreMemoryCacheSize, MEMORY_RECOVERY_DELAY_MS);
     }
 
-    public void get(final String id, final CacheManagerCallback callback) {
-        final Bitmap bitmap = getBitmapFromLRUCache(id);
+    /**
+     * Saves the keys of the most recently used images, with the size of their bitmaps, to the file
+     * every minute and when the UI is hidden. Also starts prefetching the images saved by the
+     * previous process into the memory cache, most recently used first, from the disk cache only.
+     * <p>
+     * Images are prefetched one at a time, so that a slot is never taken from a job in each
+     * pipeline stage for long, and until their bitmaps would take more than the budget.
+     * 
+     * @param file file the keys are saved to
+     * @param prefetchBudgetInKb memory the prefetched images may take, in kilobytes
+     */
+    public void persistHotSet(final File file, final int prefetchBudgetInKb) {
+        synchronized (this) {
+            hotSetFile = file;
+        }
+
+        pipeline.getDiskStage().submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                try {
+                    prefetch(HotSet.read(file), 0, prefetchBudgetInKb);
+                } catch (final IOException e) {
+                    Log.w(TAG, "Failed to read the hot set", e);
+                }
+            }
+
+            @Override
+            public void onRejected() {}
+        });
+
+        uiHandler.removeCallbacks(saveHotSetPeriodically);
+        uiHandler.postDelayed(saveHotSetPeriodically, HOT_SET_SAVE_INTERVAL_MS);
+    }
+
+    /**
+     * Saves the keys of the most recently used images now, on a background thread, if they or their
+     * order changed since they were last saved. Does nothing unless
+     * {@link #persistHotSet(File, int)} was called.
+     */
+    public void saveHotSet() {
+        final File file;
+        final List<HotSet.Item> items;
+        final List<CacheKey> keys;
+
+        synchronized (this) {
+            if (hotSetFile == null)
+                return;
+
+            // Taken right away, the caller may be about to trim the memory cache
+            items = HotSet.fromSnapshot(memoryCache.snapshot(), HOT_SET_MAX_ITEMS);
+            keys = new ArrayList<CacheKey>(items.size());
+            for (final HotSet.Item item : items) {
+                keys.add(item.key);
+            }
+
+            if (keys.equals(savedHotSetKeys))
+                return;
+
+            file = hotSetFile;
+            savedHotSetKeys = keys;
+        }
+
+        hotSetExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    HotSet.write(file, items);
+                } catch (final IOException e) {
+                    Log.w(TAG, "Failed to save the hot set", e);
+                    // Saved again next time
+                    synchronized (CacheManager.this) {
+                        if (savedHotSetKeys == keys)
+                            savedHotSetKeys = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return number of images prefetched into the memory cache from the saved hot set
+     */
+    public int getPrefetchCount() {
+        return prefetchCount.get();
+    }
+
+    private void prefetch(final List<HotSet.Item> items, final int start, final int budgetInKb) {
+        int index = start;
+
+        while (index < items.size()
+               && (items.get(index).sizeInKb > budgetInKb || memoryCache.containsKey(items.get(index).key))) {
+            index++;
+        }
+
+        if (index == items.size())
+            return;
+
+        final HotSet.Item item = items.get(index);
+        final int next = index + 1;
+
+        getFromDisk(item.key, item.key.toJobOptions(), new CacheManagerCallback() {
+            @Override
+            public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
+                int remainingBudgetInKb = budgetInKb;
+
+                if (bitmap != null) {
+                    if (put(item.key, bitmap)) {
+                        prefetchCount.incrementAndGet();
+                        remainingBudgetInKb -= (Utils.getSizeInBytes(bitmap) + 1023) / 1024;
+                    } else {
+                        // Loaded meanwhile, or not admitted
+                        bitmapPool.put(bitmap);
+                    }
+                }
+
+                prefetch(items, next, remainingBudgetInKb);
+            }
+        }, null);
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(final Configuration newConfig) {}
+
+    /**
+     * Looks up the image for the provided url and job options, first in memory and then in the
+     * disk cache, where the original bytes are decoded to the requested size and transformed.
+     * Memory hits are already transformed.
+     * <p>
+     * The callback receives a null Bitmap when neither cache has the image.
+     */
+    public void get(final String url, final JobOptions options, final CacheManagerCallback callback) {
+        final Bitmap bitmap = getFromMemory(url, options);
 
         if (bitmap != null && callback != null) {
             callback.onBitmapLoaded(bitmap, LoadedFrom.MEMORY);
             return;
         }
 
-        diskCacheHandler.post(new Runnable() {
+        getFromDisk(url, options, callback);
+    }
+
+    public Bitmap getFromMemory(final String url, final JobOptions options) {
+        return getFromMemory(ImageManager.getCacheKeyForJob(url, options));
+    }
+
+    /**
+     * Looks up the image among the displayed bitmaps first, which may have been evicted from the
+     * memory cache, and then in the memory cache.
+     */
+    public Bitmap getFromMemory(final CacheKey key) {
+        final Bitmap bitmap = activeResources.get(key);
+
+        return bitmap != null ? bitmap : getBitmapFromLRUCache(key);
+    }
+
+    /**
+     * Same as {@link #getFromMemory(CacheKey)}, but also acquires a reference to the bitmap for a
+     * {@link CacheableDrawable} about to display it. The reference must be handed over to the
+     * drawable or given back with {@link #release(Bitmap)}.
+     */
+    Bitmap acquire(final CacheKey key) {
+        // Holding the lock keeps an eviction from pooling the bitmap before it's acquired
+        synchronized (activeResources) {
+            final Bitmap bitmap = getFromMemory(key);
+
+            if (bitmap != null)
+                activeResources.acquire(key, bitmap);
+
+            return bitmap;
+        }
+    }
+
+    /**
+     * Acquires a reference to a freshly loaded bitmap for a {@link CacheableDrawable} about to
+     * display it, and caches it in memory.
+     */
+    void acquire(final CacheKey key, final Bitmap bitmap) {
+        activeResources.acquire(key, bitmap);
+
+        if (!put(key, bitmap))
+            activeResources.markUncached(bitmap);
+    }
+
+    /**
+     * Releases a reference acquired with {@link #acquire(CacheKey)} or
+     * {@link #acquire(CacheKey, Bitmap)}. The last one returns the bitmap to the pool, unless the
+     * memory cache still holds it.
+     */
+    void release(final Bitmap bitmap) {
+        if (activeResources.release(bitmap))
+            bitmapPool.put(bitmap);
+    }
+
+    /**
+     * Keeps a bitmap handed to the app out of the pool for good, since the app may keep drawing it
+     * after it's evicted or released. The caller must hold a reference to the bitmap, or have just
+     * loaded it.
+     */
+    void export(final Bitmap bitmap) {
+        activeResources.export(bitmap);
+    }
+
+    /**
+     * Serves the image for the key by downscaling, in the pipeline's decode stage, the smallest
+     * variant of it held in memory that is at least as large (see
+     * {@link CacheKey#canBeScaledTo(CacheKey)}).
+     * <p>
+     * The callback receives a null Bitmap when there's no such variant or the decode stage dropped
+     * the work. Nothing is notified once the cancellable is cancelled.
+     */
+    public void getFromLargerVariant(final CacheKey key, final CacheManagerCallback callback, final Cancellable cancellable) {
+        final CacheKey variantKey = findLargerVariant(key);
+
+        if (variantKey == null) {
+            callback.onBitmapLoaded(null, LoadedFrom.MEMORY);
+            return;
+        }
+
+        pipeline.getDecodeStage().submit(new PipelineStage.Task() {
             @Override
             public void run() {
+                if (isCancelled(cancellable))
+                    return;
+
+                callback.onBitmapLoaded(scaleVariant(variantKey, key), LoadedFrom.MEMORY);
+            }
+
+            @Override
+            public void onRejected() {
+                callback.onBitmapLoaded(null, LoadedFrom.MEMORY);
+            }
+        });
+    }
+
+    /**
+     * Looks up the image for the provided url and job options in the disk cache only. The bytes
+     * are read in the pipeline's disk stage and decoded in its decode stage.
+     * <p>
+     * A lookup dropped by either stage is reported as a miss. Images the disk cache index rules out
+     * are reported as a miss right away, on the calling thread.
+     */
+    public void getFromDisk(final String url, final JobOptions options, final CacheManagerCallback callback) {
+        getFromDisk(url, options, callback, null);
+    }
+
+    /**
+     * Same as {@link #getFromDisk(String, JobOptions, CacheManagerCallback)}, but the disk read and
+     * the decoding are skipped, without notifying the callback, once the cancellable is cancelled.
+     */
+    public void getFromDisk(final String url, final JobOptions options, final CacheManagerCallback callback,
+                            final Cancellable cancellable) {
+        getFromDisk(ImageManager.getCacheKeyForJob(url, options), options, callback, cancellable);
+    }
+
+    /**
+     * Same as {@link #getFromDisk(String, JobOptions, CacheManagerCallback, Cancellable)}, for the
+     * cache key of the url and options, whose disk key is only computed once.
+     */
+    public void getFromDisk(final CacheKey key, final JobOptions options, final CacheManagerCallback callback,
+                            final Cancellable cancellable) {
+        final String diskKey = key.getDiskKey();
+
+        if (!mightBeOnDisk(diskKey)) {
+            // Definite miss, not worth a trip through the disk stage
+            diskIndexSkipCount.incrementAndGet();
+            if (callback != null) {
+                callback.onBitmapLoaded(null, LoadedFrom.DISK);
+            }
+            return;
+        }
+
+        pipeline.getDiskStage().submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                if (isCancelled(cancellable))
+                    return;
+
+                final DiskLruImageCache.Entry entry = getEntryFromDiskCache(diskKey);
+
+                if (entry == null) {
+                    onRejected();
+                    return;
+                }
+
+                pipeline.getDecodeStage().submit(new PipelineStage.Task() {
+                    @Override
+                    public void run() {
+                        if (isCancelled(cancellable)) {
+                            entry.close();
+                            return;
+                        }
+
+                        final Bitmap bitmap;
+                        try {
+                            bitmap = DiskLruImageCache.decode(entry, options.requestedWidth, options.requestedHeight,
+                                    bitmapPool, options);
+                        } finally {
+                            entry.close();
+                        }
+
+                        if (callback != null) {
+                            callback.onBitmapLoaded(transform(bitmap, options, cancellable), LoadedFrom.DISK);
+                        }
+                    }
+
+                    @Override
+                    public void onRejected() {
+                        entry.close();
+                        if (callback != null) {
+                            callback.onBitmapLoaded(null, LoadedFrom.DISK);
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onRejected() {
                 if (callback != null) {
-                    callback.onBitmapLoaded(getBitmapFromDiskCache(id), LoadedFrom.DISK);
+                    callback.onBitmapLoaded(null, LoadedFrom.DISK);
                 }
             }
         });
     }
 
+    public void get(final String id, final CacheManagerCallback callback) {
+        get(id, new JobOptions(), callback);
+    }
+
     public void get(final String id) {
         get(id, null);
     }
 
-    public void put(final String key, final Bitmap bitmap) {
-        if (getBitmapFromLRUCache(key) != null)
-            return;
+    /**
+     * Declares that the strong ETags sent by the host are hashes of the content, so that a body
+     * downloaded from any of its URLs is reused for every other URL answered with the same ETag.
+     * Only do so for servers known to hash the content: many derive ETags from the modification
+     * time and size, which different images may share. ETags aren't looked at for other hosts.
+     * <p>
+     * This isn't a conditional request, see
+     * {@link BitmapHttpClient#get(String, BitmapHttpClient.ETagCallback)}: it only saves reading the
+     * body of a large image already downloaded from another URL.
+     */
+    public void addContentHashETagHost(final String host) {
+        contentHashETagHosts.add(host.toLowerCase(Locale.US));
+    }
+
+    private boolean hasContentHashETags(final String url) {
+        if (contentHashETagHosts.isEmpty())
+            return false;
+
+        final String host = Uri.parse(url).getHost();
+        return host != null && contentHashETagHosts.contains(host.toLowerCase(Locale.US));
+    }
+
+    private static String getETagDiskKey(final URL url, final String eTag) {
+        return CacheKey.getDiskKey("ETag " + url.getHost().toLowerCase(Locale.US) + " " + eTag);
+    }
+
+    /**
+     * @return number of downloads from a host sending content hash ETags whose ETag matched a body
+     *         already cached, which is then reused unless its length doesn't match the response's
+     */
+    public int getETagReuseCount() {
+        return eTagReuseCount.get();
+    }
 
-        memoryCache.put(key, bitmap);
+    /**
+     * Downloads the image at the provided url and queues the original bytes to be written to the
+     * disk cache in the background. For the hosts sending content hash ETags, the body isn't read if
+     * its ETag shows it's already cached, see {@link #addContentHashETagHost(String)}.
+     * 
+     * @param url image URL
+     * @return the downloaded bytes or null if the download failed
+     */
+    public byte[] fetch(final String url) {
+        return fetch(url, CacheKey.getDiskKey(url));
+    }
+
+    private byte[] fetch(final String url, final String diskKey) {
+        if (diskWriteQueue == null)
+            return BitmapHttpClient.get(url);
+
+        final ContentHashETagCallback eTagCallback = hasContentHashETags(url) ? new ContentHashETagCallback() : null;
+        final byte[] data = BitmapHttpClient.get(url, eTagCallback);
+
+        // The ETag key takes no copy of the body, it's written after it as an alias
+        if (data != null && diskWriteQueue.enqueue(diskKey, data) && eTagCallback != null
+            && eTagCallback.downloadedETagKey != null) {
+            diskWriteQueue.enqueueAlias(eTagCallback.downloadedETagKey, diskKey);
+        }
+
+        return data;
+    }
+
+    /**
+     * Downloads the image at the provided url in the pipeline's network stage and decodes it to
+     * the requested size in its decode stage.
+     */
+    public void fetch(final String url, final JobOptions options, final ImageManagerCallback callback) {
+        fetch(url, options, callback, null);
+    }
+
+    /**
+     * Same as {@link #fetch(String, JobOptions, ImageManagerCallback)}, but the download and the
+     * decoding are skipped, without notifying the callback, once the cancellable is cancelled.
+     */
+    public void fetch(final String url, final JobOptions options, final ImageManagerCallback callback, final Cancellable cancellable) {
+        fetch(ImageManager.getCacheKeyForJob(url, options), options, callback, cancellable);
+    }
+
+    /**
+     * Same as {@link #fetch(String, JobOptions, ImageManagerCallback, Cancellable)}, for the cache
+     * key of the url and options, whose disk key is only computed once.
+     */
+    public void fetch(final CacheKey key, final JobOptions options, final ImageManagerCallback callback, final Cancellable cancellable) {
+        final String url = key.getUrl();
+
+        pipeline.getNetworkStage().submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                if (isCancelled(cancellable))
+                    return;
+
+                final byte[] binaryData = fetch(url, key.getDiskKey());
+
+                if (binaryData == null) {
+                    callback.onLoadFailed(LoadedFrom.NETWORK, new Exception("binaryData == null"));
+                    return;
+                }
+
+                if (ImageManager.LOG_CACHE_OPERATIONS)
+                    Log.d(TAG, "Image downloaded: " + url);
+
+                pipeline.getDecodeStage().submit(new PipelineStage.Task() {
+                    @Override
+                    public void run() {
+                        if (isCancelled(cancellable))
+                            return;
+
+                        callback.onBitmapLoaded(decodeAndTransform(binaryData, options, cancellable), LoadedFrom.NETWORK);
+                    }
+
+                    @Override
+                    public void onRejected() {
+                        callback.onLoadFailed(LoadedFrom.NETWORK, new RejectedExecutionException("Decode stage is full"));
+                    }
+
+                    @Override
+                    public void onFailed(final RuntimeException e) {
+                        callback.onLoadFailed(LoadedFrom.NETWORK, e);
+                    }
+                });
+            }
+
+            @Override
+            public void onRejected() {
+                callback.onLoadFailed(LoadedFrom.NETWORK, new RejectedExecutionException("Network stage is full"));
+            }
+
+            @Override
+            public void onFailed(final RuntimeException e) {
+                callback.onLoadFailed(LoadedFrom.NETWORK, e);
+            }
+        });
+    }
+
+    /**
+     * @return true if the memory cache holds the bitmap for the key afterwards, false if it already
+     *         held another one or didn't admit it
+     */
+    public boolean put(final CacheKey key, final Bitmap bitmap) {
+        if (memoryCache.putIfAbsent(key, bitmap) != bitmap)
+            return false;
+
+        addVariant(key);
+        return true;
+    }
+
+    /**
+     * Applies the job's transformations to a freshly decoded bitmap, unless the job was cancelled
+     * in the meantime.
+     */
+    public Bitmap transform(final Bitmap bitmap, final JobOptions options, final Cancellable cancellable) {
+        if (isCancelled(cancellable))
+            return bitmap;
+
+        return BitmapProcessor.transform(bitmap, options, bitmapPool);
     }
 
     /** Private stuff **/
 
-    private static String sanitizeUrl(final String url) {
-        final String sanitizedKey = url.replaceAll("[^a-z0-9_]", "").replaceAll("httpdatawhicdncomimages", "");
-        return sanitizedKey.substring(0, Math.min(63, sanitizedKey.length()));
+    private Bitmap decodeAndTransform(final byte[] data, final JobOptions options, final Cancellable cancellable) {
+        final Bitmap bitmap = BitmapProcessor.decodeSampledByteArray(data, options.requestedWidth, options.requestedHeight,
+                BitmapProcessor.SamplingMethod.STANDARD, bitmapPool, options);
+
+        return transform(bitmap, options, cancellable);
+    }
+
+    /**
+     * @return the downscaled variant, or null if it was evicted in the meantime or isn't actually
+     *         larger than the target size
+     */
+    private Bitmap scaleVariant(final CacheKey variantKey, final CacheKey key) {
+        // Acquired so that it can't be evicted to the pool while being drawn
+        final Bitmap source = acquire(variantKey);
+
+        if (source == null) {
+            removeVariant(variantKey);
+            return null;
+        }
+
+        try {
+            // Keep both sides at least as large as requested, as sampled decodes do
+            final float scale = Math.max((float)key.getWidth() / source.getWidth(), (float)key.getHeight() / source.getHeight());
+
+            if (scale >= 1)
+                return null;
+
+            final Bitmap scaled = BitmapProcessor.getScaledBitmap(source, Math.max(1, Math.round(source.getWidth() * scale)),
+                    Math.max(1, Math.round(source.getHeight() * scale)), bitmapPool);
+
+            if (scaled != null) {
+                synchronized (variants) {
+                    variantHitCount++;
+                }
+
+                if (ImageManager.LOG_CACHE_OPERATIONS)
+                    Log.v(TAG, "Item scaled from " + variantKey + " to " + key);
+            }
+
+            return scaled;
+        } finally {
+            release(source);
+        }
+    }
+
+    private CacheKey findLargerVariant(final CacheKey key) {
+        synchronized (variants) {
+            final Set<CacheKey> keys = variants.get(key.getUrl());
+
+            if (keys == null)
+                return null;
+
+            CacheKey smallest = null;
+
+            for (final CacheKey candidate : keys) {
+                if (candidate.canBeScaledTo(key)
+                    && (smallest == null || candidate.getWidth() * candidate.getHeight() < smallest.getWidth() * smallest.getHeight())) {
+                    smallest = candidate;
+                }
+            }
+
+            return smallest;
+        }
+    }
+
+    private void addVariant(final CacheKey key) {
+        synchronized (variants) {
+            Set<CacheKey> keys = variants.get(key.getUrl());
+
+            if (keys == null) {
+                keys = new HashSet<CacheKey>(2);
+                variants.put(key.getUrl(), keys);
+            }
+
+            keys.add(key);
+        }
+    }
+
+    private void removeVariant(final CacheKey key) {
+        synchronized (variants) {
+            final Set<CacheKey> keys = variants.get(key.getUrl());
+
+            if (keys != null && keys.remove(key) && keys.isEmpty())
+                variants.remove(key.getUrl());
+        }
     }
 
-    private Bitmap getBitmapFromLRUCache(final String urlString) {
-        final Bitmap cachedBitmap = memoryCache.get(urlString);
+    private static boolean isCancelled(final Cancellable cancellable) {
+        return cancellable != null && cancellable.isCancelled();
+    }
+
+    private Bitmap getBitmapFromLRUCache(final CacheKey key) {
+        final Bitmap cachedBitmap = memoryCache.get(key);
 
         if (cachedBitmap == null)
             return null;
 
         if (ImageManager.LOG_CACHE_OPERATIONS)
-            Log.v(TAG, "Item loaded from LRU cache: " + urlString);
+            Log.v(TAG, "Item loaded from LRU cache: " + key);
 
         return cachedBitmap;
     }
 
-    private Bitmap getBitmapFromDiskCache(final String urlString) {
+    private boolean mightBeOnDisk(final String key) {
+        if (diskCache == null)
+            return false;
+
+        return diskWriteQueue.get(key) != null || diskCache.mightContain(key);
+    }
+
+    private DiskLruImageCache.Entry getEntryFromDiskCache(final String key) {
         if (diskCache == null)
             return null;
 
-        final String key = sanitizeUrl(urlString);
-        final Bitmap cachedBitmap = diskCache.getBitmap(key);
+        final byte[] pendingData = diskWriteQueue.get(key);
 
-        if (cachedBitmap == null)
+        // Downloaded but not written yet
+        if (pendingData != null)
+            return new DiskLruImageCache.Entry(pendingData, -1, -1, null);
+
+        // Left open, decoded straight from the cache file
+        final DiskLruImageCache.Entry entry = diskCache.openEntry(key);
+
+        if (entry == null)
             return null;
 
         if (ImageManager.LOG_CACHE_OPERATIONS) {
             Log.v(TAG, "image read from Disk cache: " + key);
         }
 
-        return cachedBitmap;
+        return entry;
     }
 
     public void clear() {
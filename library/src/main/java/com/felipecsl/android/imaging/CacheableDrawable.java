@@ -28,20 +28,47 @@ public final class CacheableDrawable extends Drawable {
     /**
      * Create or update the drawable on the target {@link ImageView} to display the supplied bitmap
      * image.
+     * <p>
+     * The caller's reference to the bitmap, acquired from the cache manager, is handed over to the
+     * drawable, which releases it once it's replaced.
      */
-    static void setBitmap(final ImageView target, final Context context, final Bitmap bitmap,
-                          final LoadedFrom loadedFrom, final boolean noFade, final boolean debugging) {
-        final Drawable placeholder = target.getDrawable();
+    static void setBitmap(final ImageView target, final Context context, final CacheManager cacheManager, final CacheKey cacheKey,
+                          final Bitmap bitmap, final LoadedFrom loadedFrom, final boolean noFade, final boolean debugging) {
+        Drawable placeholder = target.getDrawable();
+        if (placeholder instanceof CacheableDrawable) {
+            // Don't fade from a bitmap that's about to be released
+            placeholder = ((CacheableDrawable)placeholder).placeholder;
+        }
         final CacheableDrawable drawable =
-                new CacheableDrawable(context, placeholder, bitmap, loadedFrom, noFade, debugging);
+                new CacheableDrawable(context, placeholder, cacheManager, cacheKey, bitmap, loadedFrom, noFade, debugging);
+        release(target);
         target.setImageDrawable(drawable);
     }
 
+    private static void release(final ImageView target) {
+        final Drawable drawable = target.getDrawable();
+
+        if (drawable instanceof CacheableDrawable) {
+            final CacheableDrawable cacheableDrawable = (CacheableDrawable)drawable;
+            cacheableDrawable.cacheManager.release(cacheableDrawable.image.getBitmap());
+        }
+    }
+
+    /**
+     * Whether the {@link ImageView} is already displaying the image for the provided cache key.
+     */
+    static boolean isShowing(final ImageView target, final CacheKey cacheKey) {
+        final Drawable drawable = target.getDrawable();
+        return drawable instanceof CacheableDrawable && ((CacheableDrawable)drawable).cacheKey.equals(cacheKey);
+    }
+
     /**
      * Create or update the drawable on the target {@link ImageView} to display the supplied
      * placeholder image.
      */
     static void setPlaceholder(final ImageView target, final int placeholderResId, final Drawable placeholderDrawable) {
+        release(target);
+
         if (placeholderResId != 0) {
             target.setImageResource(placeholderResId);
         } else {
@@ -52,6 +79,8 @@ public final class CacheableDrawable extends Drawable {
     private final boolean debugging;
     private final float density;
     private final LoadedFrom loadedFrom;
+    final CacheManager cacheManager;
+    final CacheKey cacheKey;
     final BitmapDrawable image;
 
     Drawable placeholder;
@@ -60,14 +89,16 @@ public final class CacheableDrawable extends Drawable {
     boolean animating;
     int alpha = 0xFF;
 
-    CacheableDrawable(final Context context, final Drawable placeholder, final Bitmap bitmap,
-                      final LoadedFrom loadedFrom, final boolean noFade, final boolean debugging) {
+    CacheableDrawable(final Context context, final Drawable placeholder, final CacheManager cacheManager, final CacheKey cacheKey,
+                      final Bitmap bitmap, final LoadedFrom loadedFrom, final boolean noFade, final boolean debugging) {
         final Resources res = context.getResources();
 
         this.debugging = debugging;
         this.density = res.getDisplayMetrics().density;
 
         this.loadedFrom = loadedFrom;
+        this.cacheManager = cacheManager;
+        this.cacheKey = cacheKey;
 
         this.image = new BitmapDrawable(res, bitmap);
 
@@ -0,0 +1,10 @@
+package com.felipecsl.android.imaging;
+
+/**
+ * Checked by the pipeline stages before starting their work, so that the work for requests
+ * nobody is waiting for anymore is skipped.
+ */
+public interface Cancellable {
+
+    boolean isCancelled();
+}
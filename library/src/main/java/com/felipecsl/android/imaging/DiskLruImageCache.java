@@ -2,16 +2,36 @@ package com.felipecsl.android.imaging;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
+import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Process;
+import android.os.StatFs;
+import android.os.SystemClock;
 import android.util.Log;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
 import com.felipecsl.android.BuildConfig;
 import com.felipecsl.android.Utils;
 import com.jakewharton.disklrucache.DiskLruCache;
@@ -19,20 +39,275 @@ import com.jakewharton.disklrucache.DiskLruCache;
 // Took from
 // http://stackoverflow.com/questions/10185898/using-disklrucache-in-android-4-0-does-not-provide-for-opencache-method
 // With adaptations
+/**
+ * Disk cache of the original bytes of downloaded images.
+ * <p>
+ * The cache is opened, and its journal replayed, on a background thread so that creating it never
+ * blocks the caller. Lookups and writes made meanwhile wait until it's open, which is why they
+ * shouldn't be made from the main thread, except for {@link #mightContain(String)} which reports a
+ * miss. Use {@link #isReady()} to check it without waiting.
+ * <p>
+ * Entries are spread by key over several DiskLruCache shards, see
+ * {@link Builder#setShardCount(int)}. Small entries are appended to pack files instead, see
+ * {@link Builder#setPackedEntryThreshold(int)}.
+ * <p>
+ * The bytes written by {@link #put(String, byte[])} are stored once under their content key (see
+ * {@link CacheKey#getContentKey(byte[])}), the key they're put under only holds an alias to it. The
+ * same image downloaded from several URLs takes a single entry.
+ */
 public class DiskLruImageCache {
 
     private static final String TAG = "DiskLruImageCache";
-    private DiskLruCache diskCache;
+    // Null until opened, and if it couldn't be opened
+    private volatile DiskLruCache[] shards;
+    // Null if small entries aren't packed, or if the packs couldn't be opened
+    private PackedBlobStore packStore;
+    private final CountDownLatch openLatch = new CountDownLatch(1);
+    private volatile long openTimeMs = -1;
+    // Superset of the stored keys, see mightContain()
+    private final Set<String> keyIndex = Collections.synchronizedSet(new HashSet<String>());
     private static DiskLruImageCache instance;
-    private static CompressFormat compressFormat = CompressFormat.JPEG;
-    private static int compressQuality = 70;
-    private static final int APP_VERSION = 1;
-    private static final int VALUE_COUNT = 1;
-    private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
+    // 2: entries hold the original downloaded bytes, keyed by CacheKey.getDiskKey()
+    // 3: entries hold the image metadata as a second value
+    private static final int APP_VERSION = 3;
+    private static final int VALUE_COUNT = 2;
+    private static final int DATA_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+
+    public static final long DEFAULT_MIN_SIZE = 1024 * 1024 * 10; // 10MB
+    public static final long DEFAULT_MAX_SIZE = 1024 * 1024 * 100; // 100MB
+    public static final float DEFAULT_FREE_SPACE_FRACTION = 0.02f;
+    public static final int DEFAULT_SHARD_COUNT = 4;
+    private static final String SHARD_DIRECTORY_PREFIX = "shard-";
+    // Journal and entry files (hex digest keys) of a DiskLruCache kept in the directory itself
+    private static final Pattern UNSHARDED_FILE_PATTERN = Pattern.compile("journal(\\.tmp|\\.bkp)?|[0-9a-f]{32}\\.\\d(\\.tmp)?");
+    public static final int DEFAULT_COMPRESS_QUALITY = 70;
+    // Build.VERSION_CODES.Q, newer than the SDK compiled against
+    private static final int ANDROID_10 = 29;
+    public static final int DEFAULT_PACKED_ENTRY_THRESHOLD = 16 * 1024; // 16KB
+    private static final String PACK_DIRECTORY = "packs";
+    // Share of the cache size given to packed entries
+    private static final int PACK_SIZE_DIVISOR = 8;
+    // Metadata of the entries holding no bytes but the content key they're stored under
+    private static final String ALIAS_METADATA_PREFIX = "alias ";
+    private static final byte[] EMPTY_DATA = new byte[0];
+
+    // null to store downloaded bytes as they are
+    private final CompressFormat compressFormat;
+    private final int compressQuality;
+    private File directory;
+    private final long size;
+    private final long minSize;
+    private final long maxSize;
+    private final float freeSpaceFraction;
+    private final boolean autoSize;
+    private final int shardCount;
+    private final int packedEntryThreshold;
+    private final AtomicInteger dedupCount = new AtomicInteger();
+    // Last storage state broadcast, applied once the cache is open if it arrives before
+    private volatile boolean storageLow;
+    private Context receiverContext;
+    private BroadcastReceiver storageReceiver;
+
+    @SuppressLint("NewApi")
+    private static class IceCreamSandwichOrHigherUtils {
+        public static CompressFormat getWebp() {
+            return CompressFormat.WEBP;
+        }
+    }
+
+    @SuppressLint("NewApi")
+    private static class JellyBeanMR2OrHigherUtils {
+        public static long getAvailableBytes(final StatFs statFs) {
+            return statFs.getAvailableBytes();
+        }
+    }
+
+    /**
+     * Original bytes of an image, with the metadata stored next to them.
+     * <p>
+     * Entries returned by {@link DiskLruImageCache#openEntry(String)} keep the cache file open
+     * instead of holding its bytes, and must be closed once decoded.
+     */
+    public static class Entry {
+        // null if the entry is backed by the cache file
+        public final byte[] data;
+        // -1 if unknown
+        public final int width;
+        public final int height;
+        // null if unknown
+        public final String mimeType;
+        private final DiskLruCache.Snapshot snapshot;
+        private final FileInputStream stream;
+
+        Entry(final byte[] data, final int width, final int height, final String mimeType) {
+            this(data, null, null, width, height, mimeType);
+        }
+
+        private Entry(final byte[] data, final DiskLruCache.Snapshot snapshot, final FileInputStream stream, final int width,
+                      final int height, final String mimeType) {
+            this.data = data;
+            this.snapshot = snapshot;
+            this.stream = stream;
+            this.width = width;
+            this.height = height;
+            this.mimeType = mimeType;
+        }
+
+        public boolean hasDimensions() {
+            return width > 0 && height > 0;
+        }
+
+        /**
+         * Closes the cache file backing the entry, if any.
+         */
+        public void close() {
+            if (snapshot != null)
+                snapshot.close();
+        }
+    }
+
+    /**
+     * Configures a disk cache. By default, the cache takes 2% of the free space of its directory,
+     * between 10MB and 100MB, and shrinks when the device runs low on storage. Downloaded bytes are
+     * stored as they are, bitmaps written to it are compressed as JPEG with a quality of 70.
+     */
+    public static class Builder {
+        private final Context context;
+        private File directory;
+        private long size;
+        private long minSize = DEFAULT_MIN_SIZE;
+        private long maxSize = DEFAULT_MAX_SIZE;
+        private float freeSpaceFraction = DEFAULT_FREE_SPACE_FRACTION;
+        private CompressFormat compressFormat;
+        private int compressQuality = DEFAULT_COMPRESS_QUALITY;
+        private int shardCount = DEFAULT_SHARD_COUNT;
+        private int packedEntryThreshold = DEFAULT_PACKED_ENTRY_THRESHOLD;
+
+        public Builder(final Context context) {
+            this.context = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        }
+
+        /**
+         * Defaults to a DiskLruImageCache subdirectory of the external cache directory if available,
+         * of the internal one otherwise. The directory should be dedicated to the cache.
+         */
+        public Builder setDirectory(final File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Uses a fixed size instead of sizing the cache after the free space.
+         * 
+         * @param size size in bytes
+         */
+        public Builder setSize(final long size) {
+            this.size = size;
+            return this;
+        }
+
+        /**
+         * @param fraction fraction of the free space of the cache directory to use
+         * @param minSize lower bound of the size in bytes, unless the device runs low on storage
+         * @param maxSize upper bound of the size in bytes
+         */
+        public Builder setAutoSize(final float fraction, final long minSize, final long maxSize) {
+            if (fraction <= 0 || fraction > 1 || minSize > maxSize)
+                throw new IllegalArgumentException("Invalid disk cache size bounds");
+
+            size = 0;
+            freeSpaceFraction = fraction;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Format and quality the images are stored in. Downloaded bytes written with
+         * {@link DiskLruImageCache#put(String, byte[])} are decoded and re-encoded in this format,
+         * and only stored re-encoded if that made them smaller. Bitmaps written with
+         * {@link DiskLruImageCache#put(String, Bitmap)} are compressed in it. PNG keeps the alpha
+         * channel, JPEG doesn't, and WEBP only does from Android 4.3 (API 18) on. WEBP can't be
+         * used before Android 4.0 (API 14), see {@link #setWebp(int)}.
+         * 
+         * @param quality 0 to 100, ignored by PNG
+         */
+        public Builder setCompressFormat(final CompressFormat format, final int quality) {
+            compressFormat = format;
+            compressQuality = quality;
+            return this;
+        }
+
+        /**
+         * Stores images as lossy WEBP. The alpha channel is only kept from Android 4.3 (API 18) on,
+         * earlier releases drop it as JPEG does. Releases older than Android 4.0 (API 14), which
+         * can't encode WEBP, store images as JPEG instead.
+         */
+        public Builder setWebp(final int quality) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+                return setCompressFormat(IceCreamSandwichOrHigherUtils.getWebp(), quality);
+
+            return setCompressFormat(CompressFormat.JPEG, quality);
+        }
+
+        /**
+         * Stores images as lossless WEBP, which the platform only encodes from Android 10 (API 29)
+         * on, as WEBP at a quality of 100. Earlier releases store them as PNG, which is lossless
+         * too.
+         */
+        public Builder setLosslessWebp() {
+            if (Build.VERSION.SDK_INT >= ANDROID_10)
+                return setCompressFormat(IceCreamSandwichOrHigherUtils.getWebp(), 100);
+
+            return setCompressFormat(CompressFormat.PNG, 100);
+        }
+
+        /**
+         * Spreads the entries over independent DiskLruCaches, each with its own lock and journal
+         * in a subdirectory and an equal share of the size, so that reads and writes of entries in
+         * different shards don't wait for each other. Defaults to 4.
+         * <p>
+         * Entries stored with another shard count are dropped when the cache is opened.
+         */
+        public Builder setShardCount(final int shardCount) {
+            if (shardCount < 1)
+                throw new IllegalArgumentException("shardCount < 1");
+
+            this.shardCount = shardCount;
+            return this;
+        }
 
-    public static DiskLruImageCache getInstance(final Context context) {
+        /**
+         * Entries up to this size, avatars and small thumbnails usually, are appended to a few pack
+         * files sharing an eighth of the cache size instead of taking a file each. Defaults to
+         * 16KB, 0 stores every entry in its own file.
+         * 
+         * @param threshold size in bytes
+         */
+        public Builder setPackedEntryThreshold(final int threshold) {
+            packedEntryThreshold = Math.max(0, threshold);
+            return this;
+        }
+
+        /**
+         * Creates the cache and starts opening it in the background, see {@link DiskLruImageCache}.
+         */
+        public DiskLruImageCache build() {
+            final DiskLruImageCache cache = new DiskLruImageCache(this);
+
+            cache.openInBackground(context);
+
+            if (cache.autoSize)
+                cache.registerStorageReceiver(context);
+
+            return cache;
+        }
+    }
+
+    public static synchronized DiskLruImageCache getInstance(final Context context) {
         if (instance == null) {
-            instance = new DiskLruImageCache(context);
+            instance = new Builder(context).build();
         }
         return instance;
     }
@@ -41,79 +316,804 @@ public class DiskLruImageCache {
         return instance != null;
     }
 
-    private DiskLruImageCache(final Context context) {
-        this(context, compressFormat, compressQuality);
+    private DiskLruImageCache(final Builder builder) {
+        compressFormat = builder.compressFormat;
+        compressQuality = builder.compressQuality;
+        directory = builder.directory;
+        minSize = builder.minSize;
+        maxSize = builder.maxSize;
+        freeSpaceFraction = builder.freeSpaceFraction;
+        size = builder.size;
+        autoSize = builder.size <= 0;
+        shardCount = builder.shardCount;
+        packedEntryThreshold = builder.packedEntryThreshold;
     }
 
-    private DiskLruImageCache(final Context context, final CompressFormat format, final int quality) {
+    private void openInBackground(final Context context) {
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                open(context);
+            }
+        }, TAG + "-open");
+
+        thread.start();
+    }
+
+    private void open(final Context context) {
+        final long start = SystemClock.uptimeMillis();
+
         try {
-            final File diskCacheDir = Utils.getDiskCacheDir(context, DiskLruImageCache.TAG);
-            diskCache = DiskLruCache.open(diskCacheDir, APP_VERSION, VALUE_COUNT, DiskLruImageCache.DISK_CACHE_SIZE);
-            compressFormat = format;
-            compressQuality = quality;
+            if (directory == null)
+                directory = Utils.getDiskCacheDir(context, TAG);
+
+            final boolean openedStorageLow = storageLow;
+            final long cacheSize = autoSize ? computeSize(openedStorageLow) : size;
+            Log.d(TAG, "Initializing DiskLruImageCache with size " + cacheSize / 1024 + "kb in " + shardCount + " shards");
+            deleteOtherLayouts();
+
+            final DiskLruCache[] caches = openShards(cacheSize);
+            if (packedEntryThreshold > 0)
+                packStore = openPackStore(cacheSize);
+            shards = caches;
+            Log.d(TAG, "Indexed " + keyIndex.size() + " disk cache entries");
+
+            // Storage ran low, or was freed, while opening
+            if (autoSize && storageLow != openedStorageLow)
+                applySize();
         } catch (final IOException e) {
             Log.e(TAG, "Failed to initialize DiskLruImageCache", e);
+        } finally {
+            openTimeMs = SystemClock.uptimeMillis() - start;
+            Log.d(TAG, "DiskLruImageCache opened in " + openTimeMs + "ms");
+            openLatch.countDown();
+        }
+    }
+
+    private DiskLruCache[] openShards(final long cacheSize) throws IOException {
+        final DiskLruCache[] caches = new DiskLruCache[shardCount];
+
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                final File shardDirectory = getShardDirectory(i);
+                caches[i] = DiskLruCache.open(shardDirectory, APP_VERSION, VALUE_COUNT, getShardSize(cacheSize));
+                indexKeys(shardDirectory);
+            }
+        } catch (final IOException e) {
+            for (final DiskLruCache cache : caches) {
+                if (cache != null)
+                    IOUtils.closeQuietly(cache);
+            }
+            keyIndex.clear();
+            throw e;
+        }
+
+        return caches;
+    }
+
+    private PackedBlobStore openPackStore(final long cacheSize) {
+        try {
+            final PackedBlobStore store = new PackedBlobStore(new File(directory, PACK_DIRECTORY), getPackSize(cacheSize));
+            keyIndex.addAll(store.keys());
+            return store;
+        } catch (final IOException e) {
+            // Small entries get a file each then
+            Log.e(TAG, "Failed to open packs", e);
+            return null;
+        }
+    }
+
+    /**
+     * Even a single shard gets a subdirectory: DiskLruCache deletes every file of its directory when
+     * it's cleared or its journal is corrupt, and the cache directory may be shared.
+     */
+    private File getShardDirectory(final int shard) {
+        return new File(directory, SHARD_DIRECTORY_PREFIX + shard);
+    }
+
+    private long getShardSize(final long cacheSize) {
+        return Math.max(1, (cacheSize - getPackSize(cacheSize)) / shardCount);
+    }
+
+    private long getPackSize(final long cacheSize) {
+        return packedEntryThreshold > 0 ? cacheSize / PACK_SIZE_DIVISOR : 0;
+    }
+
+    /**
+     * Deletes the entries left by a cache opened with another layout: the journal and entry files
+     * of a cache kept in the directory itself, the shard subdirectories over the current count, and
+     * the packs if small entries aren't packed anymore. Files the cache didn't create are left
+     * alone, the directory may be shared.
+     */
+    private void deleteOtherLayouts() {
+        final File[] files = directory.listFiles();
+
+        if (files == null)
+            return;
+
+        for (final File file : files) {
+            final String name = file.getName();
+            final boolean stale;
+
+            if (PACK_DIRECTORY.equals(name)) {
+                stale = file.isDirectory() && packedEntryThreshold <= 0;
+            } else if (name.startsWith(SHARD_DIRECTORY_PREFIX)) {
+                final int shard = parseShard(name);
+                stale = file.isDirectory() && shard >= shardCount;
+            } else {
+                stale = file.isFile() && UNSHARDED_FILE_PATTERN.matcher(name).matches();
+            }
+
+            if (stale)
+                FileUtils.deleteQuietly(file);
+        }
+    }
+
+    /**
+     * @return the index of the shard directory, -1 if the name isn't one
+     */
+    private static int parseShard(final String name) {
+        final String index = name.substring(SHARD_DIRECTORY_PREFIX.length());
+
+        // Only the names written by getShardDirectory()
+        if (index.length() == 0 || (index.length() > 1 && index.charAt(0) == '0'))
+            return -1;
+
+        for (int i = 0; i < index.length(); i++) {
+            if (!Character.isDigit(index.charAt(i)))
+                return -1;
+        }
+
+        try {
+            return Integer.parseInt(index);
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Indexes the keys of the entries found in a shard directory. Every entry has a file named
+     * after its key and the index of the value, the data file of entries not committed yet was
+     * deleted when the shard was opened.
+     */
+    private void indexKeys(final File shardDirectory) {
+        final String[] files = shardDirectory.list();
+
+        if (files == null)
+            return;
+
+        final String suffix = "." + DATA_INDEX;
+        for (final String file : files) {
+            if (file.endsWith(suffix))
+                keyIndex.add(file.substring(0, file.length() - suffix.length()));
+        }
+    }
+
+    private DiskLruCache getShard(final String key) {
+        final DiskLruCache[] caches = shards;
+        return caches[(key.hashCode() & Integer.MAX_VALUE) % caches.length];
+    }
+
+    /**
+     * Tells whether an entry may be stored under the key, without touching the disk. A false return
+     * is a definite miss. Entries evicted by the cache may still be reported, until looked up.
+     * <p>
+     * Never waits for the cache to be opened: returns false while it's still being opened, so that
+     * the lookups made meanwhile are treated as misses instead of waiting on the disk stage.
+     */
+    public boolean mightContain(final String key) {
+        return shards != null && keyIndex.contains(key);
+    }
+
+    /**
+     * Reads the snapshot of the key, skipping the disk on definite misses.
+     */
+    private DiskLruCache.Snapshot getSnapshot(final String key) throws IOException {
+        if (!keyIndex.contains(key))
+            return null;
+
+        final DiskLruCache.Snapshot snapshot = getShard(key).get(key);
+
+        // Evicted or removed since indexed
+        if (snapshot == null)
+            keyIndex.remove(key);
+
+        return snapshot;
+    }
+
+    /**
+     * Waits for the cache to be opened.
+     * 
+     * @return false if it couldn't be opened
+     */
+    private boolean awaitOpen() {
+        try {
+            openLatch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        return shards != null;
+    }
+
+    /**
+     * @return true once the cache was opened, false while it's still being opened or if it couldn't
+     *         be
+     */
+    public boolean isReady() {
+        return shards != null;
+    }
+
+    /**
+     * @return time spent opening the cache and replaying its journal in milliseconds, -1 while it's
+     *         still being opened
+     */
+    public long getOpenTimeMs() {
+        return openTimeMs;
+    }
+
+    /**
+     * @param storageLow whether to ignore the lower bound
+     * @return the configured fraction of the free space of the cache directory, within the bounds
+     */
+    private long computeSize(final boolean storageLow) {
+        long available;
+        try {
+            // The directory may not exist yet, its parent is on the same volume
+            final File existing = directory.exists() ? directory : directory.getParentFile();
+            available = getAvailableBytes(new StatFs(existing.getPath()));
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, "Failed to get the free space of " + directory, e);
+            available = maxSize;
+        } catch (final NullPointerException e) {
+            Log.w(TAG, "Failed to get the free space of " + directory, e);
+            available = maxSize;
+        }
+
+        // The cache's own files count as free space, they'd be freed by shrinking it
+        available += size();
+
+        final long size = Math.min((long)(available * freeSpaceFraction), maxSize);
+
+        return storageLow ? size : Math.max(size, minSize);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getAvailableBytes(final StatFs statFs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return JellyBeanMR2OrHigherUtils.getAvailableBytes(statFs);
+
+        return (long)statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+
+    private void registerStorageReceiver(final Context context) {
+        final IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_DEVICE_STORAGE_LOW);
+        filter.addAction(Intent.ACTION_DEVICE_STORAGE_OK);
+
+        final BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                storageLow = Intent.ACTION_DEVICE_STORAGE_LOW.equals(intent.getAction());
+                resizeInBackground();
+            }
+        };
+
+        synchronized (this) {
+            receiverContext = context;
+            storageReceiver = receiver;
+        }
+
+        context.registerReceiver(receiver, filter);
+    }
+
+    /**
+     * Resizes off the main thread, which receives the storage broadcasts.
+     */
+    private void resizeInBackground() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                applySize();
+            }
+        }, TAG + "-resize").start();
+    }
+
+    /**
+     * Resizes the cache after the current free space. Entries over the new size are evicted in the
+     * background. Blocks on disk I/O. If the cache is still being opened, it's sized accordingly
+     * once open.
+     * 
+     * @param storageLow whether the device runs low on storage, in which case the cache may shrink
+     *            below its lower bound
+     */
+    public void resize(final boolean storageLow) {
+        this.storageLow = storageLow;
+        applySize();
+    }
+
+    private synchronized void applySize() {
+        // Sized when opened otherwise, see open()
+        final DiskLruCache[] caches = shards;
+        if (caches == null || !autoSize)
+            return;
+
+        final long size = computeSize(storageLow);
+        if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+            Log.v(TAG, "disk cache resized to " + size / 1024 + "kb");
+        }
+        for (final DiskLruCache cache : caches) {
+            cache.setMaxSize(getShardSize(size));
+        }
+        if (packStore != null)
+            packStore.setMaxSize(getPackSize(size));
+    }
+
+    /**
+     * @return maximum size of the cache in bytes, 0 if it couldn't be opened
+     */
+    public long getMaxSize() {
+        final DiskLruCache[] caches = shards;
+        long maxSize = 0;
+
+        if (caches != null) {
+            for (final DiskLruCache cache : caches) {
+                maxSize += cache.getMaxSize();
+            }
+            if (packStore != null)
+                maxSize += packStore.getMaxSize();
+        }
+
+        return maxSize;
+    }
+
+    /**
+     * @return current size of the cache in bytes
+     */
+    public long size() {
+        final DiskLruCache[] caches = shards;
+        long size = 0;
+
+        if (caches != null) {
+            for (final DiskLruCache cache : caches) {
+                size += cache.size();
+            }
+            if (packStore != null)
+                size += packStore.size();
+        }
+
+        return size;
+    }
+
+    private static String formatMetadata(final int width, final int height, final String mimeType) {
+        return width + " " + height + " " + (mimeType != null ? mimeType : "-");
+    }
+
+    /**
+     * Compresses the bitmap in the configured format, JPEG by default, and writes it under the
+     * provided key as {@link #put(String, byte[])} does. Blocks on disk I/O.
+     */
+    public void put(final String key, final Bitmap data) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (!data.compress(compressFormat != null ? compressFormat : CompressFormat.JPEG, compressQuality, out)) {
+            Log.e(TAG, "ERROR on: image put on disk cache " + key);
+            return;
+        }
+
+        // Already in the configured format
+        put(key, out.toByteArray(), false);
+    }
+
+    /**
+     * Writes the original encoded bytes of an image, with their metadata, under the provided key.
+     * The bytes are only written if no other key stored them yet, see {@link #getDedupCount()}, and
+     * may be re-encoded first, see {@link Builder#setCompressFormat(CompressFormat, int)}. Blocks
+     * on disk I/O, see {@link DiskWriteQueue} to write in the background.
+     * 
+     * @param key disk cache key
+     * @param data encoded image bytes
+     */
+    public void put(final String key, final byte[] data) {
+        put(key, data, true);
+    }
+
+    private void put(final String key, final byte[] data, final boolean reencode) {
+        if (!awaitOpen()) {
+            return;
+        }
+
+        final String contentKey = CacheKey.getContentKey(data);
+
+        if (containsEntry(contentKey)) {
+            dedupCount.incrementAndGet();
+            if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+                Log.v(TAG, "image already on disk cache " + key + " -> " + contentKey);
+            }
+        } else {
+            final byte[] stored = reencode ? encode(data) : data;
+            putEntry(contentKey, stored, decodeMetadata(stored));
         }
+
+        putEntry(key, EMPTY_DATA, ALIAS_METADATA_PREFIX + contentKey);
     }
 
-    private boolean writeBitmapToFile(final Bitmap bitmap, final DiskLruCache.Editor editor) throws IOException {
+    /**
+     * Writes the key as an alias of the bytes stored under the target key, without copying them.
+     * Does nothing if the target isn't stored. Blocks on disk I/O.
+     * 
+     * @param key disk cache key of the alias
+     * @param targetKey disk cache key the bytes were put under
+     */
+    public void putAlias(final String key, final String targetKey) {
+        if (!awaitOpen()) {
+            return;
+        }
+
+        final String contentKey = resolveAlias(targetKey);
+
+        if (!containsEntry(contentKey)) {
+            removeDanglingAlias(targetKey, contentKey);
+            return;
+        }
+
+        putEntry(key, EMPTY_DATA, ALIAS_METADATA_PREFIX + contentKey);
+    }
+
+    private void putEntry(final String key, final byte[] data, final String metadata) {
+        if (packStore != null && data.length <= packedEntryThreshold) {
+            putPacked(key, data, metadata);
+            return;
+        }
+
+        final DiskLruCache.Editor editor = edit(key);
+
+        if (editor == null)
+            return;
+
         OutputStream out = null;
         try {
-            out = new BufferedOutputStream(editor.newOutputStream(0), Utils.IO_BUFFER_SIZE);
-            return bitmap.compress(compressFormat, compressQuality, out);
+            out = new BufferedOutputStream(editor.newOutputStream(DATA_INDEX), Utils.IO_BUFFER_SIZE);
+            out.write(data);
+            out.close();
+            out = null;
+            editor.set(METADATA_INDEX, metadata);
+            editor.commit();
+            if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+                Log.v(TAG, "image put on disk cache " + key);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR on: image put on disk cache " + key, e);
+            editor.abortUnlessCommitted();
         } finally {
             if (out != null) {
-                out.close();
+                try {
+                    out.close();
+                } catch (final IOException ignored) {}
             }
         }
     }
 
-    @SuppressWarnings("unused")
-    public void put(final String key, final Bitmap data) {
-        if (diskCache == null) {
+    private void putPacked(final String key, final byte[] data, final String metadata) {
+        try {
+            keyIndex.add(key);
+            packStore.put(key, data, metadata);
+            // Drops the file a larger version of the image may have left
+            getShard(key).remove(key);
+            if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+                Log.v(TAG, "image packed on disk cache " + key);
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR on: image packed on disk cache " + key, e);
+        }
+    }
+
+    private void removePacked(final String key) {
+        if (packStore == null)
             return;
+
+        try {
+            packStore.remove(key);
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR on: remove packed image " + key, e);
         }
+    }
 
-        DiskLruCache.Editor editor = null;
+    private PackedBlobStore.Blob getPacked(final String key) {
+        return packStore != null ? packStore.get(key) : null;
+    }
+
+    /**
+     * @return the key of the entry holding the bytes of the provided key, which is the key itself
+     *         unless it's an alias or a miss
+     */
+    private String resolveAlias(final String key) {
+        final PackedBlobStore.Blob blob = getPacked(key);
+        if (blob != null)
+            return getAliasTarget(key, blob.metadata);
+
+        DiskLruCache.Snapshot snapshot = null;
         try {
-            editor = diskCache.edit(key);
-            if (editor == null)
-                return;
+            snapshot = getSnapshot(key);
+            if (snapshot != null)
+                return getAliasTarget(key, snapshot.getString(METADATA_INDEX));
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR resolveAlias", e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
 
-            if (writeBitmapToFile(data, editor)) {
-                editor.commit();
-                if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
-                    Log.v(TAG, "image put on disk cache " + key);
-                }
-            } else {
-                editor.abort();
-                Log.e(TAG, "ERROR on: image put on disk cache " + key);
+        return key;
+    }
+
+    /**
+     * Drops an alias whose bytes are gone, evicted or removed, so that the index rules it out from
+     * now on instead of sending every lookup to the disk. Nothing is done if the key isn't an alias.
+     * An alias written again meanwhile may be dropped too, which only costs a download.
+     */
+    private void removeDanglingAlias(final String key, final String target) {
+        if (key.equals(target))
+            return;
+
+        if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+            Log.v(TAG, "dangling alias removed from disk cache " + key + " -> " + target);
+        }
+
+        keyIndex.remove(key);
+        removePacked(key);
+        try {
+            getShard(key).remove(key);
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR on: remove dangling alias " + key, e);
+        }
+    }
+
+    private static String getAliasTarget(final String key, final String metadata) {
+        return metadata.startsWith(ALIAS_METADATA_PREFIX) ? metadata.substring(ALIAS_METADATA_PREFIX.length()) : key;
+    }
+
+    /**
+     * @return number of puts whose bytes were already stored under another key, and only took an
+     *         alias
+     */
+    public int getDedupCount() {
+        return dedupCount.get();
+    }
+
+    /**
+     * @return the editor or null if the entry is already being edited
+     */
+    private DiskLruCache.Editor edit(final String key) {
+        try {
+            removePacked(key);
+            // Indexed before it's committed, so that the index never misses a stored entry
+            keyIndex.add(key);
+            return getShard(key).edit(key);
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR on: edit disk cache entry " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the bytes re-encoded in the configured format if that made them smaller, the bytes
+     *         themselves otherwise
+     */
+    private byte[] encode(final byte[] data) {
+        if (compressFormat == null)
+            return data;
+
+        final Bitmap bitmap = BitmapProcessor.decodeByteArray(data, null);
+        if (bitmap == null)
+            return data;
+
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            if (!bitmap.compress(compressFormat, compressQuality, out) || out.size() >= data.length)
+                return data;
+
+            if (BuildConfig.DEBUG && ImageManager.LOG_CACHE_OPERATIONS) {
+                Log.v(TAG, "image re-encoded from " + data.length + " to " + out.size() + " bytes");
             }
+            return out.toByteArray();
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in encode()", e);
+            return data;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static String decodeMetadata(final byte[] data) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapProcessor.decodeByteArray(data, options);
+
+        return formatMetadata(options.outWidth, options.outHeight, options.outMimeType);
+    }
+
+    /**
+     * Opens the entry stored under the provided key without reading its bytes, so that it can be
+     * decoded straight from the cache file with
+     * {@link #decode(Entry, int, int, BitmapPool, JobOptions)}. The entry must be closed once
+     * decoded, the cache file stays readable until then even if the entry is evicted meanwhile.
+     * 
+     * @param requestedKey disk cache key, resolved if it's an alias
+     * @return the entry or null on a cache miss
+     */
+    public Entry openEntry(final String requestedKey) {
+        if (!awaitOpen()) {
+            return null;
+        }
+
+        final String key = resolveAlias(requestedKey);
+        final Entry entry = openResolvedEntry(key);
+
+        if (entry == null)
+            removeDanglingAlias(requestedKey, key);
+
+        return entry;
+    }
+
+    private Entry openResolvedEntry(final String key) {
+        // Packed entries are small enough to be read at once
+        final PackedBlobStore.Blob blob = getPacked(key);
+        if (blob != null)
+            return newEntry(key, blob.data, null, null, blob.metadata);
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = getSnapshot(key);
+            if (snapshot == null)
+                return null;
+
+            final InputStream in = snapshot.getInputStream(DATA_INDEX);
+            final String metadata = snapshot.getString(METADATA_INDEX);
+
+            if (!(in instanceof FileInputStream)) {
+                final byte[] data = IOUtils.toByteArray(in);
+                return newEntry(key, data, null, null, metadata);
+            }
+
+            final Entry entry = newEntry(key, null, snapshot, (FileInputStream)in, metadata);
+            snapshot = null;
+            return entry;
         } catch (final IOException e) {
-            Log.e(TAG, "ERROR on: image put on disk cache " + key, e);
+            Log.e(TAG, "ERROR openEntry", e);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in openEntry()", e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+
+        return null;
+    }
+
+    private static Entry newEntry(final String key, final byte[] data, final DiskLruCache.Snapshot snapshot,
+                                  final FileInputStream stream, final String metadata) {
+        final String[] values = metadata.split(" ");
+
+        try {
+            return new Entry(data, snapshot, stream, Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                    values.length > 2 && !"-".equals(values[2]) ? values[2] : null);
+        } catch (final NumberFormatException e) {
+            Log.w(TAG, "Invalid metadata for " + key);
+            return new Entry(data, snapshot, stream, -1, -1, null);
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            Log.w(TAG, "Invalid metadata for " + key);
+            return new Entry(data, snapshot, stream, -1, -1, null);
+        }
+    }
+
+    /**
+     * Reads the original encoded bytes stored under the provided key.
+     * 
+     * @param requestedKey disk cache key, resolved if it's an alias
+     * @return the stored bytes or null on a cache miss
+     */
+    public byte[] getBytes(final String requestedKey) {
+        if (!awaitOpen()) {
+            return null;
+        }
+
+        final String key = resolveAlias(requestedKey);
+        final byte[] data = getResolvedBytes(key);
+
+        if (data == null)
+            removeDanglingAlias(requestedKey, key);
+
+        return data;
+    }
+
+    private byte[] getResolvedBytes(final String key) {
+        final PackedBlobStore.Blob blob = getPacked(key);
+        if (blob != null)
+            return blob.data;
+
+        DiskLruCache.Snapshot snapshot = null;
+        try {
+            snapshot = getSnapshot(key);
+            if (snapshot == null)
+                return null;
+            return IOUtils.toByteArray(snapshot.getInputStream(DATA_INDEX));
+        } catch (final IOException e) {
+            Log.e(TAG, "ERROR getBytes", e);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "Out of memory in getBytes()", e);
+        } finally {
+            if (snapshot != null) {
+                snapshot.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Decodes an entry to the size and config requested by the job options, in a single pass when
+     * its dimensions are known. Entries backed by the cache file are decoded straight from its
+     * descriptor. The entry isn't closed.
+     * 
+     * @return the decoded Bitmap or null if entry is null or couldn't be decoded
+     */
+    public static Bitmap decode(final Entry entry, final int reqWidth, final int reqHeight, final BitmapPool bitmapPool,
+                                final JobOptions jobOptions) {
+        if (entry == null)
+            return null;
+
+        if (entry.data == null) {
             try {
-                if (editor != null) {
-                    editor.abort();
-                }
-            } catch (final IOException ignored) {} catch (final IllegalStateException ignored) {}
+                return BitmapProcessor.decodeSampledFileDescriptor(entry.stream.getFD(), entry.width, entry.height,
+                        entry.mimeType, reqWidth, reqHeight, BitmapProcessor.SamplingMethod.STANDARD, bitmapPool, jobOptions);
+            } catch (final IOException e) {
+                Log.e(TAG, "ERROR decode", e);
+                return null;
+            }
+        }
+
+        if (entry.hasDimensions()) {
+            return BitmapProcessor.decodeSampledByteArray(entry.data, entry.width, entry.height, entry.mimeType, reqWidth,
+                    reqHeight, BitmapProcessor.SamplingMethod.STANDARD, bitmapPool, jobOptions);
         }
 
+        return BitmapProcessor.decodeSampledByteArray(entry.data, reqWidth, reqHeight, BitmapProcessor.SamplingMethod.STANDARD,
+                bitmapPool, jobOptions);
     }
 
-    public Bitmap getBitmap(final String key) {
-        if (diskCache == null) {
+    public Bitmap getBitmap(final String requestedKey) {
+        if (!awaitOpen()) {
             return null;
         }
 
+        final String key = resolveAlias(requestedKey);
+
+        if (!containsEntry(key)) {
+            removeDanglingAlias(requestedKey, key);
+            return null;
+        }
+
+        final PackedBlobStore.Blob blob = getPacked(key);
+        if (blob != null)
+            return BitmapProcessor.decodeByteArray(blob.data, null);
+
         Bitmap bitmap = null;
         DiskLruCache.Snapshot snapshot = null;
         try {
 
-            snapshot = diskCache.get(key);
+            snapshot = getSnapshot(key);
             if (snapshot == null)
                 return null;
-            final InputStream in = snapshot.getInputStream(0);
-            if (in != null) {
+            final InputStream in = snapshot.getInputStream(DATA_INDEX);
+            if (in instanceof FileInputStream) {
+                bitmap = BitmapProcessor.decodeFileDescriptor(((FileInputStream)in).getFD());
+            } else if (in != null) {
                 final BufferedInputStream buffIn = new BufferedInputStream(in, Utils.IO_BUFFER_SIZE);
                 bitmap = BitmapProcessor.decodeStream(buffIn);
             }
@@ -129,14 +1129,27 @@ public class DiskLruImageCache {
     }
 
     public boolean containsKey(final String key) {
-        if (diskCache == null) {
+        if (!awaitOpen()) {
             return false;
         }
 
+        final String target = resolveAlias(key);
+
+        if (containsEntry(target))
+            return true;
+
+        removeDanglingAlias(key, target);
+        return false;
+    }
+
+    private boolean containsEntry(final String key) {
+        if (packStore != null && packStore.contains(key))
+            return true;
+
         boolean contained = false;
         DiskLruCache.Snapshot snapshot = null;
         try {
-            snapshot = diskCache.get(key);
+            snapshot = getSnapshot(key);
             contained = (snapshot != null);
         } catch (final IOException e) {
             Log.e(TAG, "", e);
@@ -149,9 +1162,41 @@ public class DiskLruImageCache {
         return contained;
     }
 
+    /**
+     * Stops listening for storage broadcasts and closes the cache files. The cache must not be used
+     * afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            if (storageReceiver != null) {
+                receiverContext.unregisterReceiver(storageReceiver);
+                storageReceiver = null;
+                receiverContext = null;
+            }
+        }
+
+        synchronized (DiskLruImageCache.class) {
+            if (instance == this)
+                instance = null;
+        }
+
+        if (!awaitOpen())
+            return;
+
+        final DiskLruCache[] caches = shards;
+        // Lookups made from now on are misses
+        shards = null;
+        keyIndex.clear();
+        if (packStore != null)
+            packStore.close();
+        for (final DiskLruCache cache : caches) {
+            IOUtils.closeQuietly(cache);
+        }
+    }
+
     @SuppressWarnings("unused")
     public void clearCache() {
-        if (diskCache == null) {
+        if (!awaitOpen()) {
             return;
         }
 
@@ -159,7 +1204,12 @@ public class DiskLruImageCache {
             Log.v(TAG, "disk cache CLEARED");
         }
         try {
-            diskCache.delete();
+            keyIndex.clear();
+            if (packStore != null)
+                packStore.clear();
+            for (final DiskLruCache cache : shards) {
+                cache.delete();
+            }
         } catch (final IOException e) {
             Log.e(TAG, "", e);
         }
@@ -0,0 +1,255 @@
+package com.felipecsl.android.imaging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Write-behind queue for the disk cache. Downloaded images are queued here and written by a single
+ * drain task running in the pipeline's disk stage, so that neither the network threads nor the
+ * callers ever wait on disk writes.
+ * <p>
+ * A write queued for a key already waiting replaces it. The queued bytes are bounded: a write that
+ * would go over the bound is dropped rather than blocking the caller, the image will simply be
+ * downloaded again if it's requested later. Queued images are served by {@link #get(String)} until
+ * they're written.
+ * <p>
+ * Aliases, keys written as a reference to the image under another key, take no bytes and are
+ * written once the queued images are, see {@link #enqueueAlias(String, String)}.
+ */
+public class DiskWriteQueue {
+
+    public static final int DEFAULT_MAX_PENDING_BYTES = 4 * 1024 * 1024; // 4MB
+
+    private static final String TAG = "DiskWriteQueue";
+
+    private final DiskLruImageCache diskCache;
+    private final PipelineStage stage;
+    private final int maxPendingBytes;
+    private final LinkedHashMap<String, byte[]> pending = new LinkedHashMap<String, byte[]>();
+    // Target key by alias
+    private final LinkedHashMap<String, String> pendingAliases = new LinkedHashMap<String, String>();
+    private int pendingBytes;
+    private boolean draining;
+    private int writeCount;
+    private int mergedCount;
+    private int droppedCount;
+    private long totalWriteTimeMs;
+    private long maxWriteTimeMs;
+
+    private final PipelineStage.Task drainTask = new PipelineStage.Task() {
+        @Override
+        public void run() {
+            drain();
+        }
+
+        @Override
+        public void onRejected() {
+            // The queued writes stay queued until the next one schedules a drain again
+            synchronized (DiskWriteQueue.this) {
+                draining = false;
+            }
+        }
+    };
+
+    public DiskWriteQueue(final DiskLruImageCache diskCache, final PipelineStage stage) {
+        this(diskCache, stage, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param stage stage running the writes, usually the pipeline's disk stage
+     * @param maxPendingBytes maximum size of the images waiting to be written
+     */
+    public DiskWriteQueue(final DiskLruImageCache diskCache, final PipelineStage stage, final int maxPendingBytes) {
+        this.diskCache = diskCache;
+        this.stage = stage;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Queues the original bytes of an image to be written under the provided disk cache key.
+     *
+     * @return false if the write was dropped because the queue is full
+     */
+    public boolean enqueue(final String key, final byte[] data) {
+        synchronized (this) {
+            final byte[] previous = pending.remove(key);
+
+            if (previous != null) {
+                pendingBytes -= previous.length;
+                mergedCount++;
+            }
+
+            if (pendingBytes + data.length > maxPendingBytes) {
+                droppedCount++;
+
+                if (ImageManager.LOG_CACHE_OPERATIONS)
+                    Log.d(TAG, "Disk write dropped, " + pendingBytes + " bytes already queued: " + key);
+
+                return false;
+            }
+
+            pending.put(key, data);
+            pendingBytes += data.length;
+
+            if (draining)
+                return true;
+
+            draining = true;
+        }
+
+        stage.submit(drainTask);
+        return true;
+    }
+
+    /**
+     * Queues the key to be written as an alias of the image stored under the target key, see
+     * {@link DiskLruImageCache#putAlias(String, String)}. Written after every image queued before
+     * it, so the target should be queued first.
+     */
+    public void enqueueAlias(final String key, final String targetKey) {
+        synchronized (this) {
+            if (pendingAliases.put(key, targetKey) != null)
+                mergedCount++;
+
+            if (draining)
+                return;
+
+            draining = true;
+        }
+
+        stage.submit(drainTask);
+    }
+
+    /**
+     * @return the bytes queued for the key, or for the target of the alias queued for it, and not
+     *         written yet, or null
+     */
+    public synchronized byte[] get(final String key) {
+        final byte[] data = pending.get(key);
+
+        if (data != null)
+            return data;
+
+        final String targetKey = pendingAliases.get(key);
+        return targetKey != null ? pending.get(targetKey) : null;
+    }
+
+    /**
+     * Drops every queued write.
+     */
+    public synchronized void clear() {
+        droppedCount += pending.size() + pendingAliases.size();
+        pending.clear();
+        pendingAliases.clear();
+        pendingBytes = 0;
+    }
+
+    /**
+     * @return number of images and aliases waiting to be written
+     */
+    public synchronized int getQueueDepth() {
+        return pending.size() + pendingAliases.size();
+    }
+
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized int getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * @return number of queued writes replaced by a newer one for the same key
+     */
+    public synchronized int getMergedCount() {
+        return mergedCount;
+    }
+
+    /**
+     * @return number of writes dropped because the queue was full or cleared
+     */
+    public synchronized int getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getAverageWriteLatencyMs() {
+        return writeCount != 0 ? totalWriteTimeMs / writeCount : 0;
+    }
+
+    public synchronized long getMaxWriteLatencyMs() {
+        return maxWriteTimeMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("DiskWriteQueue[depth=%d,pendingBytes=%d,writes=%d,merged=%d,dropped=%d,avgLatency=%dms,maxLatency=%dms]",
+                getQueueDepth(), pendingBytes, writeCount, mergedCount, droppedCount, getAverageWriteLatencyMs(), maxWriteTimeMs);
+    }
+
+    /**
+     * Writes a queued image to the disk cache, on the stage's thread.
+     */
+    void write(final String key, final byte[] data) {
+        diskCache.put(key, data);
+    }
+
+    /**
+     * Writes a queued alias to the disk cache, on the stage's thread.
+     */
+    void writeAlias(final String key, final String targetKey) {
+        diskCache.putAlias(key, targetKey);
+    }
+
+    private void drain() {
+        while (true) {
+            final String key;
+            final byte[] data;
+            final String targetKey;
+
+            synchronized (this) {
+                // Images first, so that an alias never gets ahead of its target
+                if (!pending.isEmpty()) {
+                    // Left queued while it's written, so that it can still be read meanwhile
+                    final Map.Entry<String, byte[]> next = pending.entrySet().iterator().next();
+                    key = next.getKey();
+                    data = next.getValue();
+                    targetKey = null;
+                } else if (!pendingAliases.isEmpty()) {
+                    final Map.Entry<String, String> next = pendingAliases.entrySet().iterator().next();
+                    key = next.getKey();
+                    data = null;
+                    targetKey = next.getValue();
+                } else {
+                    draining = false;
+                    return;
+                }
+            }
+
+            final long start = SystemClock.uptimeMillis();
+            if (data != null) {
+                write(key, data);
+            } else {
+                writeAlias(key, targetKey);
+            }
+            final long elapsed = SystemClock.uptimeMillis() - start;
+
+            synchronized (this) {
+                // Unless a newer write for the same key replaced it in the meantime
+                if (data != null && pending.get(key) == data) {
+                    pending.remove(key);
+                    pendingBytes -= data.length;
+                } else if (data == null && pendingAliases.get(key) == targetKey) {
+                    pendingAliases.remove(key);
+                }
+
+                writeCount++;
+                totalWriteTimeMs += elapsed;
+                maxWriteTimeMs = Math.max(maxWriteTimeMs, elapsed);
+            }
+        }
+    }
+}
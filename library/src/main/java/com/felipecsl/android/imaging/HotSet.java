@@ -0,0 +1,134 @@
+package com.felipecsl.android.imaging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import org.apache.commons.io.IOUtils;
+
+import com.felipecsl.android.Utils;
+
+/**
+ * Record of the most recently used memory cache keys and the size of their bitmaps, saved so that
+ * the next process can prefetch them, see {@link CacheManager#persistHotSet(File, int)}.
+ */
+final class HotSet {
+
+    private static final int VERSION = 1;
+
+    static final class Item {
+        final CacheKey key;
+        final int sizeInKb;
+
+        Item(final CacheKey key, final int sizeInKb) {
+            this.key = key;
+            this.sizeInKb = sizeInKb;
+        }
+    }
+
+    private HotSet() {}
+
+    /**
+     * @param snapshot memory cache content, as returned by {@link MemoryLruImageCache#snapshot()}
+     * @return up to maxItems of the most recently used keys, most recent first
+     */
+    static List<Item> fromSnapshot(final Map<CacheKey, Bitmap> snapshot, final int maxItems) {
+        final List<Item> items = new ArrayList<Item>(snapshot.size());
+
+        for (final Map.Entry<CacheKey, Bitmap> entry : snapshot.entrySet()) {
+            items.add(new Item(entry.getKey(), (Utils.getSizeInBytes(entry.getValue()) + 1023) / 1024));
+        }
+
+        // The snapshot is ordered from least to most recently used
+        Collections.reverse(items);
+
+        return items.size() > maxItems ? new ArrayList<Item>(items.subList(0, maxItems)) : items;
+    }
+
+    /**
+     * Writes the items to a temporary file first, so that a crash never leaves a partial record.
+     */
+    static void write(final File file, final List<Item> items) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), Utils.IO_BUFFER_SIZE));
+            out.writeInt(VERSION);
+            out.writeInt(items.size());
+
+            for (final Item item : items) {
+                final JobOptions options = item.key.toJobOptions();
+                out.writeUTF(item.key.getUrl());
+                out.writeInt(options.requestedWidth);
+                out.writeInt(options.requestedHeight);
+                out.writeUTF(options.scaleType.name());
+                out.writeInt(options.roundedCorners ? options.radius : -1);
+                out.writeBoolean(options.circle);
+                out.writeUTF(options.preferredConfig.name());
+                out.writeBoolean(options.autoConfig);
+                out.writeInt(item.sizeInKb);
+            }
+
+            out.close();
+            out = null;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        if (!tempFile.renameTo(file))
+            throw new IOException("Failed to rename " + tempFile + " to " + file);
+    }
+
+    /**
+     * @return the items in the file, most recently used first, or an empty list if there's no file
+     *         or it was written by another version
+     */
+    static List<Item> read(final File file) throws IOException {
+        if (!file.exists())
+            return Collections.emptyList();
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), Utils.IO_BUFFER_SIZE));
+
+            if (in.readInt() != VERSION)
+                return Collections.emptyList();
+
+            final int count = in.readInt();
+            final List<Item> items = new ArrayList<Item>(Math.max(0, count));
+
+            for (int i = 0; i < count; i++) {
+                final String url = in.readUTF();
+                final JobOptions options = new JobOptions(in.readInt(), in.readInt());
+                options.scaleType = ScaleType.valueOf(in.readUTF());
+                options.radius = in.readInt();
+                options.roundedCorners = options.radius >= 0;
+                options.circle = in.readBoolean();
+                options.preferredConfig = Bitmap.Config.valueOf(in.readUTF());
+                options.autoConfig = in.readBoolean();
+
+                items.add(new Item(new CacheKey(url, options), in.readInt()));
+            }
+
+            return items;
+        } catch (final IllegalArgumentException e) {
+            // Scale type or config unknown to this version
+            return Collections.emptyList();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.felipecsl.android.imaging;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.Map;
 import java.util.WeakHashMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
@@ -14,15 +16,17 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import com.felipecsl.android.Utils;
+import com.felipecsl.android.imaging.BitmapProcessor.SamplingMethod;
 import com.felipecsl.android.imaging.CacheManager.CacheManagerCallback;
 
 public class ImageManager {
     /* Static members */
     private static final String TAG = "ImageManager";
+    private static final String HOT_SET_FILE_NAME = "ImageManager-hotset";
     public static final int NO_PLACEHOLDER = -1;
 
-    // TODO: Should be removed once a job is finished
-    private static final Map<ImageView, String> runningJobs = Collections.synchronizedMap(new WeakHashMap<ImageView, String>());
+    // Requests not displayed yet, removed once their image is set or they're cancelled
+    private static final Map<ImageView, ProcessorCallback> runningJobs = Collections.synchronizedMap(new WeakHashMap<ImageView, ProcessorCallback>());
     private static CacheManager defaultCacheManager;
     private static final Handler uiHandler = new Handler(Looper.getMainLooper());
 
@@ -31,13 +35,20 @@ public class ImageManager {
     private final CacheManager cacheManager;
     private ImageViewCallback imageViewCallback;
     private BitmapCallback bitmapCallback;
+    private SizeBuckets sizeBuckets;
     private int placeholderResId = Color.parseColor("#eeeeee");
     public static final boolean LOG_CACHE_OPERATIONS = false;
 
+    /**
+     * The bitmap may be kept: bitmaps handed to callbacks are never reused for decoding.
+     */
     public interface ImageViewCallback {
         void onImageLoaded(ImageView imageView, Bitmap bitmap);
     }
 
+    /**
+     * The bitmap may be kept: bitmaps handed to callbacks are never reused for decoding.
+     */
     public interface BitmapCallback {
         void onBitmapLoaded(Bitmap bitmap);
     }
@@ -45,16 +56,12 @@ public class ImageManager {
     /**
      * Default constructor.
      * <p>
-     * Will use the default CacheManager.
+     * Will use the default CacheManager, sized after the device's memory class and trimmed when the
+     * system runs low on memory.
      *
      */
     public ImageManager(final Context context) {
-        this(context,
-                defaultCacheManager == null
-                        ? (defaultCacheManager = new CacheManager(
-                        Utils.createDefaultBitmapLruCache(),
-                        DiskLruImageCache.getInstance(context)))
-                        : defaultCacheManager);
+        this(context, getDefaultCacheManager(context));
     }
 
     /**
@@ -72,13 +79,31 @@ public class ImageManager {
         cacheManager = _cacheManager;
     }
 
+    private static synchronized CacheManager getDefaultCacheManager(final Context context) {
+        if (defaultCacheManager == null) {
+            final MemoryLruImageCache memoryCache = Utils.createDefaultBitmapLruCache(context);
+            defaultCacheManager = new CacheManager(memoryCache, DiskLruImageCache.getInstance(context));
+            defaultCacheManager.registerComponentCallbacks(context);
+            // Prefetches up to a quarter of the memory cache with what the last process showed
+            defaultCacheManager.persistHotSet(new File(context.getCacheDir(), HOT_SET_FILE_NAME), memoryCache.maxSize() / 4);
+        }
+
+        return defaultCacheManager;
+    }
+
     public Context getContext() {
         return context;
     }
 
     public static void cleanUp() {
         defaultCacheManager.clear();
-        runningJobs.clear();
+
+        synchronized (runningJobs) {
+            for (final ProcessorCallback job : runningJobs.values()) {
+                job.cancel();
+            }
+            runningJobs.clear();
+        }
     }
 
     /**
@@ -96,54 +121,101 @@ public class ImageManager {
         if (urlString == null || urlString == "")
             return;
 
-        final ImageManager self = this;
-
-        loadImage(urlString, imageView, options, new CacheManagerCallback() {
-            @Override
-            public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
-                if (bitmap == null) {
-                    queueJob(urlString, imageView, options);
-                } else {
-                    final ProcessorCallback callback = new ProcessorCallback(self, urlString, imageView, options);
-                    callback.onBitmapLoaded(bitmap, source);
-                }
-            }
-        });
+        loadImage(urlString, null, imageView, options);
     }
 
     public void loadImage(final Uri imageUri, final ImageView imageView, final JobOptions options) {
         if (imageUri == null)
             return;
 
-        final ImageManager self = this;
-        final String urlString = imageUri.toString();
+        loadImage(imageUri.toString(), imageUri, imageView, options);
+    }
+
+    /**
+     * Binds the image to the view. Cancels the request the view was previously bound to, unless
+     * it's for the same image, in which case this is a no-op.
+     * <p>
+     * Serves the image from memory if possible, including images still displayed by other views
+     * but evicted from the memory cache. Otherwise attaches the request to the running job for the
+     * same cache key or, if there is none, downscales a larger variant of the image held in memory,
+     * or looks up the disk cache and then downloads the image (or decodes the local imageUri, if
+     * provided) on a miss.
+     */
+    private void loadImage(final String urlString, final Uri imageUri, final ImageView imageView, final JobOptions requestedOptions) {
+        final JobOptions options = sizeBuckets != null ? sizeBuckets.quantize(requestedOptions) : requestedOptions;
+        final ProcessorCallback callback = new ProcessorCallback(this, urlString, imageView, options);
+        final CacheKey cacheKey = callback.getCacheKey();
+
+        synchronized (runningJobs) {
+            final ProcessorCallback previous = runningJobs.get(imageView);
+
+            if (previous != null) {
+                if (previous.getCacheKey().equals(cacheKey))
+                    return;
+
+                previous.cancel();
+            } else if (CacheableDrawable.isShowing(imageView, cacheKey)) {
+                return;
+            }
+
+            runningJobs.put(imageView, callback);
+        }
+
+        if (placeholderResId != NO_PLACEHOLDER)
+            CacheableDrawable.setPlaceholder(imageView, placeholderResId, null);
+
+        final Bitmap bitmap = cacheManager.acquire(cacheKey);
+
+        if (sizeBuckets != null)
+            sizeBuckets.recordRequest(getCacheKeyForJob(urlString, requestedOptions), bitmap != null);
+
+        if (bitmap != null) {
+            callback.onBitmapAcquired(bitmap, LoadedFrom.MEMORY);
+            return;
+        }
+
+        final InFlightRequests.Job job = cacheManager.getInFlightRequests().attach(cacheKey, callback);
+
+        if (job == null)
+            return;
 
-        loadImage(urlString, imageView, options, new CacheManagerCallback() {
+        cacheManager.getFromLargerVariant(cacheKey, new CacheManagerCallback() {
             @Override
             public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
-                if (bitmap == null) {
-                    queueJob(imageUri, imageView, options);
+                if (bitmap != null) {
+                    job.onBitmapLoaded(bitmap, source);
                 } else {
-                    final ProcessorCallback callback = new ProcessorCallback(self, urlString, imageView, options);
-                    callback.onBitmapLoaded(bitmap, source);
+                    loadFromDisk(urlString, imageUri, options, job);
                 }
             }
-        });
+        }, job);
     }
 
-    private void loadImage(final String urlString, final ImageView imageView, final JobOptions options, final CacheManagerCallback callback) {
-        runningJobs.put(imageView, urlString);
-
-        if (placeholderResId != NO_PLACEHOLDER)
-            CacheableDrawable.setPlaceholder(imageView, placeholderResId, null);
-
-        cacheManager.get(getCacheKeyForJob(urlString, options), callback);
+    /**
+     * Looks up the disk cache, which holds the original bytes and so serves any size, and then
+     * downloads the image (or decodes the local imageUri, if provided) on a miss.
+     */
+    private void loadFromDisk(final String urlString, final Uri imageUri, final JobOptions options, final InFlightRequests.Job job) {
+        cacheManager.getFromDisk(job.getKey(), options, new CacheManagerCallback() {
+            @Override
+            public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
+                if (bitmap != null) {
+                    job.onBitmapLoaded(bitmap, source);
+                } else if (imageUri != null) {
+                    queueJob(imageUri, options, job);
+                } else {
+                    queueJob(urlString, options, job);
+                }
+            }
+        }, job);
     }
 
-    public static String getCacheKeyForJob(final String url, final JobOptions options) {
-        if (options.requestedHeight <= 0 && options.requestedWidth <= 0)
-            return url;
-        return String.format("%s-%sx%s", url, options.requestedWidth, options.requestedHeight);
+    /**
+     * Key of the display ready image for the provided url and options. Covers the requested size,
+     * scale type and the rounded corners or circle transformation.
+     */
+    public static CacheKey getCacheKeyForJob(final String url, final JobOptions options) {
+        return new CacheKey(url, options);
     }
 
     /**
@@ -157,18 +229,20 @@ public class ImageManager {
         if (urlString == null || urlString == "")
             return;
 
-        cacheManager.get(urlString, new CacheManagerCallback() {
+        // Acquired so that it can't be evicted to the pool before it's exported
+        final Bitmap cached = cacheManager.acquire(CacheKey.forUrl(urlString));
+
+        if (cached != null) {
+            postBitmap(cached);
+            cacheManager.release(cached);
+            return;
+        }
+
+        cacheManager.getFromDisk(urlString, new JobOptions(), new CacheManagerCallback() {
             @Override
             public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
                 if (bitmap != null) {
-                    if (bitmapCallback != null) {
-                        uiHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                bitmapCallback.onBitmapLoaded(bitmap);
-                            }
-                        });
-                    }
+                    postBitmap(bitmap);
                 } else {
                     queueJob(urlString);
                 }
@@ -176,6 +250,25 @@ public class ImageManager {
         });
     }
 
+    /**
+     * Hands the bitmap to the bitmap callback, if any. The caller must hold a reference to the
+     * bitmap or have just loaded it, see {@link CacheManager#export(Bitmap)}.
+     */
+    private void postBitmap(final Bitmap bitmap) {
+        final BitmapCallback callback = bitmapCallback;
+
+        if (callback == null)
+            return;
+
+        cacheManager.export(bitmap);
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onBitmapLoaded(bitmap);
+            }
+        });
+    }
+
     public int getPlaceholderResId() {
         return placeholderResId;
     }
@@ -191,46 +284,72 @@ public class ImageManager {
      */
 
     private void queueJob(final String url) {
-        final byte[] binaryData = BitmapHttpClient.get(url);
+        cacheManager.fetch(url, new JobOptions(), new ImageManagerCallback() {
+            @Override
+            public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
+                if (bitmap == null) {
+                    Log.e(TAG, "queueJob got NULL bitmap");
+                    return;
+                }
 
-        if (binaryData == null) {
-            Log.e(TAG, "queueJob got null binaryData");
-            return;
-        }
+                // Exported before it's cached, where it could be evicted to the pool right away
+                postBitmap(bitmap);
+                cacheManager.put(CacheKey.forUrl(url), bitmap);
+            }
 
-        final Bitmap bitmap = BitmapProcessor.decodeByteArray(binaryData, null);
+            @Override
+            public void onLoadFailed(final LoadedFrom source, final Exception e) {
+                Log.e(TAG, "queueJob failed to load " + url, e);
+            }
+        });
+    }
 
-        if (bitmap == null) {
-            Log.e(TAG, "queueJob got NULL bitmap");
-            return;
-        }
+    private void queueJob(final String url, final JobOptions options, final InFlightRequests.Job job) {
+        cacheManager.fetch(job.getKey(), options, job, job);
+    }
 
-        cacheManager.put(url, bitmap);
+    private void queueJob(final Uri uri, final JobOptions options, final InFlightRequests.Job job) {
+        cacheManager.getPipeline().getDecodeStage().submit(new PipelineStage.Task() {
+            @Override
+            public void run() {
+                if (job.isCancelled())
+                    return;
 
-        if (bitmapCallback != null) {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    bitmapCallback.onBitmapLoaded(bitmap);
-                }
-            });
-        }
+                final String contentPath = Utils.getContentPathFromUri(context, uri);
+                final Bitmap bitmap = cacheManager.transform(BitmapProcessor.decodeSampledBitmapFromLocalUri(context, uri,
+                        options.requestedWidth, options.requestedHeight, SamplingMethod.STANDARD, contentPath,
+                        cacheManager.getBitmapPool(), options), options, job);
 
-        if (LOG_CACHE_OPERATIONS) {
-            Log.d(TAG, "Image downloaded: " + url);
-        }
-    }
+                if (bitmap != null) {
+                    job.onBitmapLoaded(bitmap, LoadedFrom.LOCAL);
+                } else {
+                    job.onLoadFailed(LoadedFrom.LOCAL, new Exception("Failed to load local image"));
+                }
+            }
 
-    private void queueJob(final String url, final ImageView imageView, final JobOptions options) {
-        final ProcessorCallback callback = new ProcessorCallback(this, url, imageView, options);
+            @Override
+            public void onRejected() {
+                job.onLoadFailed(LoadedFrom.LOCAL, new RejectedExecutionException("Decode stage is full"));
+            }
 
-        BitmapProcessor.decodeSampledBitmapFromRemoteUrl(context, url, options.requestedWidth, options.requestedHeight, callback);
+            @Override
+            public void onFailed(final RuntimeException e) {
+                job.onLoadFailed(LoadedFrom.LOCAL, e);
+            }
+        });
     }
 
-    private void queueJob(final Uri uri, final ImageView imageView, final JobOptions options) {
-        final ProcessorCallback callback = new ProcessorCallback(this, uri.toString(), imageView, options);
+    public SizeBuckets getSizeBuckets() {
+        return sizeBuckets;
+    }
 
-        BitmapProcessor.decodeSampledBitmapFromLocalUri(context, uri, options.requestedWidth, options.requestedHeight, callback);
+    /**
+     * Rounds the requested sizes of the images loaded into views up to the provided buckets, so
+     * that close sizes share one decode and one cache entry. Null, the default, uses the exact
+     * requested sizes.
+     */
+    public void setSizeBuckets(final SizeBuckets sizeBuckets) {
+        this.sizeBuckets = sizeBuckets;
     }
 
     public void setImageViewCallback(final ImageViewCallback callback) {
@@ -253,7 +372,14 @@ public class ImageManager {
         return cacheManager;
     }
 
-    public Map<ImageView, String> getRunningJobs() {
+    public Map<ImageView, ProcessorCallback> getRunningJobs() {
         return runningJobs;
     }
+
+    /**
+     * @return the jobs running for the cache manager, shared with the other image managers using it
+     */
+    public InFlightRequests getInFlightRequests() {
+        return cacheManager.getInFlightRequests();
+    }
 }
@@ -0,0 +1,43 @@
+package com.felipecsl.android.imaging;
+
+/**
+ * The stages an image load goes through on a memory cache miss: disk cache reads, network
+ * fetches and CPU bound decoding/transformations. Each stage has its own pool, so a slow
+ * download doesn't hold back disk hits and decoding scales with the number of cores.
+ */
+public class ImagePipeline {
+    private static ImagePipeline defaultPipeline;
+
+    private final PipelineStage diskStage;
+    private final PipelineStage networkStage;
+    private final PipelineStage decodeStage;
+
+    public static synchronized ImagePipeline getDefault() {
+        if (defaultPipeline == null) {
+            defaultPipeline = new ImagePipeline();
+        }
+        return defaultPipeline;
+    }
+
+    public ImagePipeline() {
+        this(new StageOptions(2), new StageOptions(4), new StageOptions(Runtime.getRuntime().availableProcessors()));
+    }
+
+    public ImagePipeline(final StageOptions diskOptions, final StageOptions networkOptions, final StageOptions decodeOptions) {
+        diskStage = new PipelineStage("ImagePipeline Disk", diskOptions);
+        networkStage = new PipelineStage("ImagePipeline Network", networkOptions);
+        decodeStage = new PipelineStage("ImagePipeline Decode", decodeOptions);
+    }
+
+    public PipelineStage getDiskStage() {
+        return diskStage;
+    }
+
+    public PipelineStage getNetworkStage() {
+        return networkStage;
+    }
+
+    public PipelineStage getDecodeStage() {
+        return decodeStage;
+    }
+}
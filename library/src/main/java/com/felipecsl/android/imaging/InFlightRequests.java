@@ -0,0 +1,118 @@
+package com.felipecsl.android.imaging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+/**
+ * Registry of the image jobs currently running, keyed by cache key.
+ * <p>
+ * The first request for a key starts the job, any request for the same key arriving before it
+ * finishes is attached to it and receives the same decoded Bitmap. A job is cancelled once every
+ * request attached to it has been detached.
+ */
+public class InFlightRequests {
+
+    private final Map<CacheKey, Job> jobs = new HashMap<CacheKey, Job>();
+    private int mergedRequestCount;
+
+    /**
+     * A running job shared by all the requests attached to it. Delivers its result to each of
+     * them.
+     */
+    public class Job implements ImageManagerCallback, Cancellable {
+        private final CacheKey key;
+        private final List<ImageManagerCallback> callbacks = new ArrayList<ImageManagerCallback>(1);
+        private boolean cancelled;
+
+        private Job(final CacheKey key) {
+            this.key = key;
+        }
+
+        public CacheKey getKey() {
+            return key;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            synchronized (InFlightRequests.this) {
+                return cancelled;
+            }
+        }
+
+        @Override
+        public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
+            for (final ImageManagerCallback callback : finish(this)) {
+                callback.onBitmapLoaded(bitmap, source);
+            }
+        }
+
+        @Override
+        public void onLoadFailed(final LoadedFrom source, final Exception e) {
+            for (final ImageManagerCallback callback : finish(this)) {
+                callback.onLoadFailed(source, e);
+            }
+        }
+    }
+
+    /**
+     * Attaches a request to the job for the provided key.
+     *
+     * @param key cache key for the job
+     * @param callback callback to be notified when the job finishes
+     * @return the new job, which the caller should start, or null if the request was attached
+     *         to a job already running
+     */
+    public synchronized Job attach(final CacheKey key, final ImageManagerCallback callback) {
+        final Job running = jobs.get(key);
+
+        if (running != null) {
+            running.callbacks.add(callback);
+            mergedRequestCount++;
+            return null;
+        }
+
+        final Job job = new Job(key);
+        job.callbacks.add(callback);
+        jobs.put(key, job);
+        return job;
+    }
+
+    /**
+     * Detaches a request from the job for the provided key. If it was the last request attached,
+     * the job is cancelled.
+     */
+    public synchronized void detach(final CacheKey key, final ImageManagerCallback callback) {
+        final Job job = jobs.get(key);
+
+        if (job == null || !job.callbacks.remove(callback) || !job.callbacks.isEmpty())
+            return;
+
+        job.cancelled = true;
+        jobs.remove(key);
+    }
+
+    public synchronized boolean isRunning(final CacheKey key) {
+        return jobs.containsKey(key);
+    }
+
+    /**
+     * @return how many requests were attached to an already running job instead of starting
+     *         their own
+     */
+    public synchronized int getMergedRequestCount() {
+        return mergedRequestCount;
+    }
+
+    private synchronized List<ImageManagerCallback> finish(final Job job) {
+        if (jobs.get(job.key) == job)
+            jobs.remove(job.key);
+
+        final List<ImageManagerCallback> callbacks = new ArrayList<ImageManagerCallback>(job.callbacks);
+        job.callbacks.clear();
+        return callbacks;
+    }
+}
@@ -1,5 +1,6 @@
 package com.felipecsl.android.imaging;
 
+import android.graphics.Bitmap;
 import android.widget.ImageView;
 
 public class JobOptions {
@@ -17,6 +18,13 @@ public class JobOptions {
     // size bounds, 1024 or 2048, to avoid loading big images to imageViews
     public int bounds;
 
+    // config images are decoded to
+    public Bitmap.Config preferredConfig = Bitmap.Config.ARGB_8888;
+
+    // decode images that can't have transparency (JPEGs) to RGB_565 instead of preferredConfig,
+    // halving their memory use, unless a transformation needs alpha
+    public boolean autoConfig = false;
+
     public JobOptions() {
         this(0, 0);
     }
@@ -29,4 +37,16 @@ public class JobOptions {
         this.requestedWidth = requestedWidth;
         this.requestedHeight = requestedHeight;
     }
+
+    public JobOptions(final JobOptions other) {
+        this(other.requestedWidth, other.requestedHeight);
+        roundedCorners = other.roundedCorners;
+        circle = other.circle;
+        fadeIn = other.fadeIn;
+        scaleType = other.scaleType;
+        radius = other.radius;
+        bounds = other.bounds;
+        preferredConfig = other.preferredConfig;
+        autoConfig = other.autoConfig;
+    }
 }
@@ -1,38 +1,474 @@
 package com.felipecsl.android.imaging;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.graphics.Bitmap;
-import android.support.v4.util.LruCache;
 
 import com.felipecsl.android.Utils;
 
-public class MemoryLruImageCache extends LruCache<String, Bitmap> {
+/**
+ * LRU cache of display ready bitmaps, sized in kilobytes.
+ * <p>
+ * Same contract as {@code android.support.v4.util.LruCache}, plus an optional
+ * {@link AdmissionPolicy} consulted whenever inserting a new entry would evict the least recently
+ * used one. Without a policy every entry is admitted, which is plain LRU.
+ * <p>
+ * Entries are spread over segments locked independently, so that decode workers inserting
+ * bitmaps don't hold up lookups from the UI thread. Every access is stamped from a clock shared by
+ * all the segments, and evictions remove the least recently used entry among the segments'
+ * eldest ones, which keeps the order close to a global LRU. Each segment publishes its eldest
+ * entry, so that finding the victim takes no lock, only removing it locks its segment.
+ */
+public class MemoryLruImageCache {
+
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 4;
 
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int maxSize;
+    private final AdmissionPolicy admissionPolicy;
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger hitCount = new AtomicInteger();
+    private final AtomicInteger missCount = new AtomicInteger();
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+    private final AtomicInteger rejectionCount = new AtomicInteger();
     private MemoryCacheEntryRemovedCallback onEntryRemovedCallback;
+    private volatile float sizeMultiplier = 1;
 
     public static interface MemoryCacheEntryRemovedCallback {
-        void onEntryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue);
+        void onEntryRemoved(boolean evicted, CacheKey key, Bitmap oldValue, Bitmap newValue);
+    }
+
+    private static final class Entry {
+        final CacheKey key;
+        final Bitmap bitmap;
+        final int size;
+        long lastAccess;
+
+        Entry(final CacheKey key, final Bitmap bitmap, final int size, final long lastAccess) {
+            this.key = key;
+            this.bitmap = bitmap;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Access ordered entries guarded by the segment's own monitor.
+     */
+    private static final class Segment {
+        final LinkedHashMap<CacheKey, Entry> map = new LinkedHashMap<CacheKey, Entry>(0, 0.75f, true);
+        // Key and access time of the eldest entry, readable without the lock. Written together but
+        // may be read apart, which only makes the victim a little less exact
+        volatile CacheKey eldestKey;
+        volatile long eldestAccess = Long.MAX_VALUE;
+
+        /**
+         * Must be called holding the segment's lock.
+         */
+        Map.Entry<CacheKey, Entry> eldest() {
+            return map.isEmpty() ? null : map.entrySet().iterator().next();
+        }
+
+        /**
+         * Publishes the eldest entry. Must be called holding the segment's lock, after every change
+         * to the map or to an access time.
+         */
+        void updateEldest() {
+            final Map.Entry<CacheKey, Entry> eldest = eldest();
+
+            eldestKey = eldest != null ? eldest.getKey() : null;
+            eldestAccess = eldest != null ? eldest.getValue().lastAccess : Long.MAX_VALUE;
+        }
     }
 
     public MemoryLruImageCache(final int cacheSizeInKb) {
-        super(cacheSizeInKb);
+        this(cacheSizeInKb, null);
+    }
+
+    /**
+     * @param admissionPolicy decides whether new entries may evict older ones, null to admit all
+     *            of them
+     */
+    public MemoryLruImageCache(final int cacheSizeInKb, final AdmissionPolicy admissionPolicy) {
+        this(cacheSizeInKb, admissionPolicy, DEFAULT_CONCURRENCY_LEVEL);
+    }
+
+    /**
+     * @param concurrencyLevel number of independently locked segments, rounded up to a power of
+     *            two. 1 gives an exact LRU order.
+     */
+    public MemoryLruImageCache(final int cacheSizeInKb, final AdmissionPolicy admissionPolicy, final int concurrencyLevel) {
+        if (cacheSizeInKb <= 0)
+            throw new IllegalArgumentException("cacheSizeInKb <= 0");
+
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("concurrencyLevel <= 0");
+
+        final int segmentCount = concurrencyLevel == 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment();
+        }
+
+        segmentMask = segmentCount - 1;
+        maxSize = cacheSizeInKb;
+        this.admissionPolicy = admissionPolicy;
     }
 
     public void setEntryRemovedCallback(final MemoryCacheEntryRemovedCallback onEntryRemovedCallback) {
         this.onEntryRemovedCallback = onEntryRemovedCallback;
     }
 
-    @Override
-    protected int sizeOf(final String key, final Bitmap bitmap) {
-        // The cache size will be measured in kilobytes rather than number of items.
-        return Utils.getSizeInBytes(bitmap) / 1024;
+    public AdmissionPolicy getAdmissionPolicy() {
+        return admissionPolicy;
     }
 
-    @Override
-    protected void entryRemoved(final boolean evicted, final String key, final Bitmap oldValue, final Bitmap newValue) {
-        super.entryRemoved(evicted, key, oldValue, newValue);
+    /**
+     * @return the bitmap for the key, which becomes the most recently used entry, or null
+     */
+    public final Bitmap get(final CacheKey key) {
+        if (key == null)
+            throw new NullPointerException("key == null");
+
+        if (admissionPolicy != null)
+            admissionPolicy.recordAccess(key);
+
+        final Segment segment = segmentFor(key);
+        final Entry entry;
+
+        synchronized (segment) {
+            entry = segment.map.get(key);
+
+            if (entry != null) {
+                entry.lastAccess = clock.incrementAndGet();
+                segment.updateEldest();
+            }
+        }
+
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return entry.bitmap;
+    }
+
+    /**
+     * Caches the bitmap for the key, replacing the bitmap cached for it if any, unless the
+     * admission policy rejects it in favor of the entry it would evict.
+     *
+     * @return the bitmap previously cached for the key, or null
+     */
+    public final Bitmap put(final CacheKey key, final Bitmap bitmap) {
+        return put(key, bitmap, false);
+    }
+
+    /**
+     * Caches the bitmap for the key unless a bitmap is already cached for it, as a single atomic
+     * operation, and unless the admission policy rejects it.
+     *
+     * @return the bitmap cached for the key afterwards: the one already cached, the provided one if
+     *         it was inserted, or null if it was rejected
+     */
+    public final Bitmap putIfAbsent(final CacheKey key, final Bitmap bitmap) {
+        return put(key, bitmap, true);
+    }
+
+    /**
+     * Unlike {@link #get(CacheKey)}, doesn't make the entry the most recently used or count as a
+     * lookup.
+     */
+    public final boolean containsKey(final CacheKey key) {
+        final Segment segment = segmentFor(key);
+
+        synchronized (segment) {
+            return segment.map.containsKey(key);
+        }
+    }
+
+    public final Bitmap remove(final CacheKey key) {
+        if (key == null)
+            throw new NullPointerException("key == null");
+
+        final Segment segment = segmentFor(key);
+        final Entry previous;
+
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            segment.updateEldest();
+        }
+
+        if (previous == null)
+            return null;
+
+        size.addAndGet(-previous.size);
+        entryRemoved(false, key, previous.bitmap, null);
+        return previous.bitmap;
+    }
+
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Scales the size the cache may grow to, between 0 (nothing is kept) and 1 (its full
+     * {@link #maxSize()}). Entries over the new size are removed right away, least recently used
+     * first.
+     */
+    public void setSizeMultiplier(final float multiplier) {
+        sizeMultiplier = Math.max(0, Math.min(1, multiplier));
+        trimToCurrentMaxSize();
+    }
+
+    public float getSizeMultiplier() {
+        return sizeMultiplier;
+    }
+
+    /**
+     * @return the size the cache may currently grow to, in kilobytes
+     */
+    public int getCurrentMaxSize() {
+        return (int)(maxSize * sizeMultiplier);
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is no larger than its current max
+     * size.
+     */
+    public void trimToCurrentMaxSize() {
+        trimToSize(getCurrentMaxSize());
+    }
+
+    /**
+     * Removes the least recently used entries until the cache is no larger than the provided
+     * size, in kilobytes. A negative size empties the cache.
+     */
+    public void trimToSize(final int maxSizeInKb) {
+        while (size.get() > maxSizeInKb) {
+            final Segment segment = findEldestSegment();
+
+            if (segment == null)
+                break;
+
+            final CacheKey key;
+            final Entry entry;
+
+            synchronized (segment) {
+                final Map.Entry<CacheKey, Entry> eldest = segment.eldest();
+
+                // Another thread emptied the segment in the meantime, look again
+                if (eldest == null)
+                    continue;
 
+                key = eldest.getKey();
+                entry = eldest.getValue();
+                segment.map.remove(key);
+                segment.updateEldest();
+            }
+
+            size.addAndGet(-entry.size);
+            evictionCount.incrementAndGet();
+            entryRemoved(true, key, entry.bitmap, null);
+        }
+    }
+
+    /**
+     * @return the size of the cache in kilobytes
+     */
+    public final int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the size the cache may grow to when not trimmed, in kilobytes
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return number of new entries the admission policy turned down
+     */
+    public final int rejectionCount() {
+        return rejectionCount.get();
+    }
+
+    /**
+     * @return a copy of the cache contents, ordered from least to most recently used
+     */
+    public final Map<CacheKey, Bitmap> snapshot() {
+        final List<Entry> entries = new ArrayList<Entry>();
+
+        for (final Segment segment : segments) {
+            synchronized (segment) {
+                for (final Entry entry : segment.map.values()) {
+                    // Copied, the access time of the cached entry may change while sorting
+                    entries.add(new Entry(entry.key, entry.bitmap, entry.size, entry.lastAccess));
+                }
+            }
+        }
+
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry lhs, final Entry rhs) {
+                return lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1);
+            }
+        });
+
+        final LinkedHashMap<CacheKey, Bitmap> snapshot = new LinkedHashMap<CacheKey, Bitmap>(entries.size());
+        for (final Entry entry : entries) {
+            snapshot.put(entry.key, entry.bitmap);
+        }
+
+        return snapshot;
+    }
+
+    protected int sizeOf(final CacheKey key, final Bitmap bitmap) {
+        // The cache size will be measured in kilobytes rather than number of items. Rounded up, so
+        // that small RGB_565 thumbnails aren't counted as free
+        return (Utils.getSizeInBytes(bitmap) + 1023) / 1024;
+    }
+
+    protected void entryRemoved(final boolean evicted, final CacheKey key, final Bitmap oldValue, final Bitmap newValue) {
         if (onEntryRemovedCallback != null) {
             onEntryRemovedCallback.onEntryRemoved(evicted, key, oldValue, newValue);
         }
     }
+
+    @Override
+    public final String toString() {
+        final int hits = hitCount.get();
+        final int accesses = hits + missCount.get();
+        final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("MemoryLruImageCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,rejections=%d]",
+                maxSize, hits, accesses - hits, hitPercent, rejectionCount.get());
+    }
+
+    /**
+     * @return the previous bitmap as {@link #put(CacheKey, Bitmap)} does, or the cached bitmap as
+     *         {@link #putIfAbsent(CacheKey, Bitmap)} does if onlyIfAbsent is true
+     */
+    private Bitmap put(final CacheKey key, final Bitmap bitmap, final boolean onlyIfAbsent) {
+        if (key == null || bitmap == null)
+            throw new NullPointerException("key == null || bitmap == null");
+
+        final int entrySize = safeSizeOf(key, bitmap);
+
+        // The victim is looked up before locking the key's segment
+        if (!containsKey(key) && !admit(key, entrySize)) {
+            rejectionCount.incrementAndGet();
+            return null;
+        }
+
+        final Segment segment = segmentFor(key);
+        final Entry previous;
+
+        synchronized (segment) {
+            final Entry existing = segment.map.get(key);
+
+            if (existing != null && onlyIfAbsent) {
+                existing.lastAccess = clock.incrementAndGet();
+                segment.updateEldest();
+                return existing.bitmap;
+            }
+
+            previous = segment.map.put(key, new Entry(key, bitmap, entrySize, clock.incrementAndGet()));
+            segment.updateEldest();
+        }
+
+        putCount.incrementAndGet();
+        size.addAndGet(entrySize - (previous != null ? previous.size : 0));
+
+        if (previous != null)
+            entryRemoved(false, key, previous.bitmap, bitmap);
+
+        trimToCurrentMaxSize();
+
+        if (onlyIfAbsent)
+            return bitmap;
+
+        return previous != null ? previous.bitmap : null;
+    }
+
+    /**
+     * Only the least recently used entry competes with the candidate, entries evicted after it are
+     * dropped as in plain LRU.
+     */
+    private boolean admit(final CacheKey candidate, final int candidateSize) {
+        if (admissionPolicy == null || size.get() + candidateSize <= getCurrentMaxSize())
+            return true;
+
+        final Segment segment = findEldestSegment();
+        final CacheKey victim = segment != null ? segment.eldestKey : null;
+
+        if (victim == null)
+            return true;
+
+        return admissionPolicy.admit(candidate, victim);
+    }
+
+    /**
+     * Reads the eldest entry each segment published, without locking any.
+     *
+     * @return the segment holding the least recently used entry, or null if the cache is empty
+     */
+    private Segment findEldestSegment() {
+        Segment eldestSegment = null;
+        long eldestAccess = Long.MAX_VALUE;
+
+        for (final Segment segment : segments) {
+            final long access = segment.eldestAccess;
+
+            if (access < eldestAccess) {
+                eldestAccess = access;
+                eldestSegment = segment;
+            }
+        }
+
+        return eldestSegment;
+    }
+
+    private Segment segmentFor(final CacheKey key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & segmentMask];
+    }
+
+    private int safeSizeOf(final CacheKey key, final Bitmap bitmap) {
+        final int result = sizeOf(key, bitmap);
+
+        if (result < 0)
+            throw new IllegalStateException("Negative size: " + key + "=" + bitmap);
+
+        return result;
+    }
 }
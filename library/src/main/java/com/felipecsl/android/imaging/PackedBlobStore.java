@@ -0,0 +1,496 @@
+package com.felipecsl.android.imaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Stores small blobs, such as avatars and thumbnails, in a few append-only pack files instead of a
+ * file each. Keeps an in-memory index of where every blob is, so that a read is a single positional
+ * read of an already open file.
+ * <p>
+ * Every put or removal appends a record to the newest pack, the index is rebuilt at open by
+ * replaying the packs in order. Blobs over the size are evicted in least recently used order.
+ * Overwritten, removed and evicted blobs leave dead records behind: once they take more than half
+ * of the packs, the oldest pack is compacted in the background by moving its live blobs to the
+ * newest pack and deleting it. Only ever compacting the oldest pack keeps the removal records of
+ * the newer packs valid.
+ */
+class PackedBlobStore {
+
+    private static final String TAG = "PackedBlobStore";
+    private static final String PACK_FILE_PREFIX = "pack-";
+    private static final long PACK_FILE_SIZE = 1024 * 1024; // 1MB
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 0;
+
+    /**
+     * Blob read from the store, with the metadata stored next to it.
+     */
+    static class Blob {
+        final byte[] data;
+        final String metadata;
+
+        Blob(final byte[] data, final String metadata) {
+            this.data = data;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class Pack {
+        final int id;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        long length;
+
+        Pack(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            length = raf.length();
+        }
+    }
+
+    private static class Location {
+        // Moved in place by the compaction, guarded by the store's lock
+        Pack pack;
+        long offset;
+        final int length;
+        final int recordLength;
+        final String metadata;
+        // False once overwritten, removed or evicted
+        boolean live = true;
+
+        Location(final Pack pack, final long offset, final int length, final int recordLength, final String metadata) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.recordLength = recordLength;
+            this.metadata = metadata;
+        }
+    }
+
+    private final File directory;
+    private long maxSize;
+    private long size;
+    private final TreeMap<Integer, Pack> packs = new TreeMap<Integer, Pack>();
+    private final LinkedHashMap<String, Location> index = new LinkedHashMap<String, Location>(0, 0.75f, true);
+    private Pack activePack;
+    private boolean compacting;
+
+    private final ThreadPoolExecutor compactionExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private final Runnable compactionTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (compactOldestPack()) {
+                    // Until the packs are dense enough again
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "Failed to compact packs", e);
+            } finally {
+                synchronized (PackedBlobStore.this) {
+                    compacting = false;
+                }
+            }
+        }
+    };
+
+    /**
+     * Opens the store, replaying the packs found in the directory. Does disk I/O.
+     *
+     * @param maxSize size of the live blobs in bytes, records included
+     */
+    PackedBlobStore(final File directory, final long maxSize) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Failed to create " + directory);
+
+        final File[] files = directory.listFiles();
+        final List<Integer> ids = new ArrayList<Integer>();
+
+        if (files != null) {
+            for (final File file : files) {
+                try {
+                    if (file.getName().startsWith(PACK_FILE_PREFIX)) {
+                        ids.add(Integer.parseInt(file.getName().substring(PACK_FILE_PREFIX.length())));
+                        continue;
+                    }
+                } catch (final NumberFormatException e) {}
+
+                FileUtils.deleteQuietly(file);
+            }
+        }
+
+        final Integer[] sortedIds = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sortedIds);
+
+        for (final Integer id : sortedIds) {
+            final Pack pack = new Pack(id, getPackFile(id));
+            packs.put(id, pack);
+            replay(pack);
+        }
+
+        if (packs.isEmpty()) {
+            activePack = newPack(0);
+        } else {
+            activePack = packs.get(packs.lastKey());
+        }
+
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    private File getPackFile(final int id) {
+        return new File(directory, PACK_FILE_PREFIX + id);
+    }
+
+    private Pack newPack(final int id) throws IOException {
+        final Pack pack = new Pack(id, getPackFile(id));
+        packs.put(id, pack);
+        return pack;
+    }
+
+    /**
+     * Reads the records of a pack into the index. A record cut short, by a crash while it was
+     * written for instance, is truncated away with everything after it.
+     */
+    private void replay(final Pack pack) throws IOException {
+        final byte[] content = new byte[(int)pack.length];
+        readFully(pack.channel, ByteBuffer.wrap(content), 0);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(content));
+        long offset = 0;
+
+        try {
+            while (offset < content.length) {
+                final byte type = in.readByte();
+                final String key = in.readUTF();
+
+                if (type == RECORD_REMOVE) {
+                    removeFromIndex(key);
+                } else if (type == RECORD_PUT) {
+                    final String metadata = in.readUTF();
+                    final int length = in.readInt();
+                    final long dataOffset = content.length - in.available();
+
+                    if (length < 0 || in.skipBytes(length) != length)
+                        throw new EOFException();
+
+                    final int recordLength = (int)(dataOffset + length - offset);
+                    addToIndex(key, new Location(pack, dataOffset, length, recordLength, metadata));
+                } else {
+                    throw new EOFException();
+                }
+
+                offset = content.length - in.available();
+            }
+        } catch (final IOException e) {
+            // Only thrown on an incomplete or corrupt record, the content is already in memory
+            Log.w(TAG, "Truncating " + pack.file + " to " + offset + " bytes, its last record is incomplete");
+            pack.raf.setLength(offset);
+            pack.length = offset;
+        }
+    }
+
+    /**
+     * @return the keys of the stored blobs
+     */
+    synchronized Set<String> keys() {
+        return new HashSet<String>(index.keySet());
+    }
+
+    synchronized boolean contains(final String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * @return the blob stored under the key, or null if there's none or it couldn't be read
+     */
+    Blob get(final String key) {
+        final Location location;
+        final Pack pack;
+        final long offset;
+
+        synchronized (this) {
+            location = index.get(key);
+
+            if (location == null)
+                return null;
+
+            pack = location.pack;
+            offset = location.offset;
+        }
+
+        // Read without the lock, a pack deleted by the compaction meanwhile is reported as a miss
+        try {
+            final byte[] data = new byte[location.length];
+            readFully(pack.channel, ByteBuffer.wrap(data), offset);
+            return new Blob(data, location.metadata);
+        } catch (final IOException e) {
+            Log.w(TAG, "Failed to read " + key, e);
+            return null;
+        }
+    }
+
+    synchronized void put(final String key, final byte[] data, final String metadata) throws IOException {
+        final byte[] record = newPutRecord(key, data, metadata);
+        final long offset = append(record);
+
+        removeFromIndex(key);
+        addToIndex(key, new Location(activePack, offset + record.length - data.length, data.length, record.length, metadata));
+
+        trimToSize();
+        scheduleCompactionIfNeeded();
+    }
+
+    synchronized void remove(final String key) throws IOException {
+        if (!index.containsKey(key))
+            return;
+
+        appendRemoval(key);
+        removeFromIndex(key);
+        scheduleCompactionIfNeeded();
+    }
+
+    /**
+     * @return size of the live blobs in bytes, records included
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    synchronized void setMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+
+        try {
+            trimToSize();
+            scheduleCompactionIfNeeded();
+        } catch (final IOException e) {
+            Log.e(TAG, "Failed to trim packs", e);
+        }
+    }
+
+    /**
+     * Deletes every blob and pack.
+     */
+    synchronized void clear() throws IOException {
+        for (final Pack pack : packs.values()) {
+            IOUtils.closeQuietly(pack.raf);
+            FileUtils.deleteQuietly(pack.file);
+        }
+
+        packs.clear();
+        for (final Location location : index.values()) {
+            location.live = false;
+        }
+        index.clear();
+        size = 0;
+        activePack = newPack(activePack.id + 1);
+    }
+
+    synchronized void close() {
+        compactionExecutor.shutdown();
+
+        for (final Pack pack : packs.values()) {
+            IOUtils.closeQuietly(pack.raf);
+        }
+    }
+
+    private void addToIndex(final String key, final Location location) {
+        index.put(key, location);
+        size += location.recordLength;
+    }
+
+    private void removeFromIndex(final String key) {
+        final Location location = index.remove(key);
+
+        if (location != null) {
+            location.live = false;
+            size -= location.recordLength;
+        }
+    }
+
+    /**
+     * Appends a record to the newest pack, starting a new pack once it's full.
+     *
+     * @return offset of the record in the newest pack
+     */
+    private long append(final byte[] record) throws IOException {
+        if (activePack.length > 0 && activePack.length + record.length > PACK_FILE_SIZE)
+            activePack = newPack(activePack.id + 1);
+
+        final long offset = activePack.length;
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+
+        while (buffer.hasRemaining()) {
+            activePack.channel.write(buffer, offset + buffer.position());
+        }
+
+        activePack.length += record.length;
+        return offset;
+    }
+
+    private static byte[] newPutRecord(final String key, final byte[] data, final String metadata) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + 64);
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_PUT);
+        out.writeUTF(key);
+        out.writeUTF(metadata);
+        out.writeInt(data.length);
+        out.write(data);
+        return record.toByteArray();
+    }
+
+    private void appendRemoval(final String key) throws IOException {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(RECORD_REMOVE);
+        out.writeUTF(key);
+        append(record.toByteArray());
+    }
+
+    private void trimToSize() throws IOException {
+        final Iterator<Map.Entry<String, Location>> iterator = index.entrySet().iterator();
+
+        while (size > maxSize && iterator.hasNext()) {
+            final Map.Entry<String, Location> eldest = iterator.next();
+            final Location location = eldest.getValue();
+
+            appendRemoval(eldest.getKey());
+            iterator.remove();
+            location.live = false;
+            size -= location.recordLength;
+        }
+    }
+
+    private long getPacksLength() {
+        long length = 0;
+
+        for (final Pack pack : packs.values()) {
+            length += pack.length;
+        }
+
+        return length;
+    }
+
+    private boolean needsCompaction() {
+        // The newest pack is never compacted, there'd be nowhere to move its blobs
+        return packs.size() > 1 && getPacksLength() > 2 * size;
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compacting || !needsCompaction())
+            return;
+
+        compacting = true;
+        compactionExecutor.execute(compactionTask);
+    }
+
+    /**
+     * Moves the live blobs of the oldest pack to the newest pack, and deletes it. The blobs keep
+     * their place in the recency order, the index isn't looked up through its access order.
+     *
+     * @return true if there's more to compact
+     */
+    private boolean compactOldestPack() throws IOException {
+        final Pack oldest;
+        final List<String> keys = new ArrayList<String>();
+        final List<Location> locations = new ArrayList<Location>();
+
+        synchronized (this) {
+            if (!needsCompaction())
+                return false;
+
+            oldest = packs.get(packs.firstKey());
+
+            for (final Map.Entry<String, Location> entry : index.entrySet()) {
+                if (entry.getValue().pack == oldest) {
+                    keys.add(entry.getKey());
+                    locations.add(entry.getValue());
+                }
+            }
+        }
+
+        for (int i = 0; i < keys.size(); i++) {
+            final Location location = locations.get(i);
+
+            // Only the compaction moves blobs, so the location is still in the oldest pack
+            synchronized (this) {
+                if (!location.live)
+                    continue;
+            }
+
+            // Read without the lock, so that lookups aren't blocked by the compaction
+            final byte[] data = new byte[location.length];
+            readFully(oldest.channel, ByteBuffer.wrap(data), location.offset);
+
+            synchronized (this) {
+                // Unless it was overwritten, removed or evicted meanwhile
+                if (location.live)
+                    move(keys.get(i), location, data);
+            }
+        }
+
+        synchronized (this) {
+            packs.remove(oldest.id);
+            IOUtils.closeQuietly(oldest.raf);
+            FileUtils.deleteQuietly(oldest.file);
+
+            return needsCompaction();
+        }
+    }
+
+    /**
+     * Appends the blob again to the newest pack and points its location there, in place, so that
+     * neither its position in the recency order nor the size change.
+     */
+    private void move(final String key, final Location location, final byte[] data) throws IOException {
+        final byte[] record = newPutRecord(key, data, location.metadata);
+        final long offset = append(record);
+
+        location.pack = activePack;
+        location.offset = offset + record.length - data.length;
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.felipecsl.android.imaging;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A bounded pool of worker threads running one kind of work (disk reads, network fetches or
+ * decoding).
+ * <p>
+ * When the queue is full, the oldest queued task is dropped in favor of the new one, since the
+ * newest requests usually belong to the views currently on screen. Dropped tasks are notified
+ * through {@link Task#onRejected()} so their callers can fail or fall back.
+ * <p>
+ * A task throwing a RuntimeException doesn't take its worker thread down, it's logged and
+ * notified through {@link Task#onFailed(RuntimeException)}.
+ */
+public class PipelineStage {
+    private static final String TAG = "PipelineStage";
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Unit of work submitted to a stage.
+     */
+    public static abstract class Task implements Runnable {
+        /**
+         * Called instead of {@link #run()} when the task was dropped by the stage.
+         */
+        public abstract void onRejected();
+
+        /**
+         * Called when {@link #run()} threw. Fails the same way as a dropped task by default, so
+         * that whoever waits for the task is always notified.
+         */
+        public void onFailed(final RuntimeException e) {
+            onRejected();
+        }
+    }
+
+    public PipelineStage(final String name, final StageOptions options) {
+        this.name = name;
+        executor = new ThreadPoolExecutor(options.poolSize, options.poolSize, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(options.queueDepth),
+                new StageThreadFactory(name, options.threadPriority),
+                new DropOldestPolicy());
+    }
+
+    public void submit(final Task task) {
+        executor.execute(new Task() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, name + " task failed", e);
+                    task.onFailed(e);
+                }
+            }
+
+            @Override
+            public void onRejected() {
+                task.onRejected();
+            }
+        });
+    }
+
+    /**
+     * @return number of tasks waiting for a worker thread
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private static class StageThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(1);
+        private final String name;
+        private final int threadPriority;
+
+        StageThreadFactory(final String name, final int threadPriority) {
+            this.name = name;
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(threadPriority);
+                    runnable.run();
+                }
+            }, name + " #" + count.getAndIncrement());
+        }
+    }
+
+    private class DropOldestPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(final Runnable runnable, final ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                ((Task)runnable).onRejected();
+                return;
+            }
+
+            final Runnable oldest = executor.getQueue().poll();
+
+            if (oldest != null) {
+                if (ImageManager.LOG_CACHE_OPERATIONS)
+                    Log.v(TAG, name + " queue is full, dropping oldest task");
+
+                ((Task)oldest).onRejected();
+            }
+
+            executor.execute(runnable);
+        }
+    }
+}
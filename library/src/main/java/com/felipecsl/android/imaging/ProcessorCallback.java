@@ -1,5 +1,7 @@
 package com.felipecsl.android.imaging;
 
+import java.util.Map;
+
 import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.Looper;
@@ -8,13 +10,20 @@ import android.widget.ImageView;
 
 import com.felipecsl.android.imaging.ImageManager.ImageViewCallback;
 
-public class ProcessorCallback implements ImageManagerCallback {
+/**
+ * Request for an image bound to an {@link ImageView}. It's the handle kept in
+ * {@link ImageManager#getRunningJobs()} until the image is displayed, and gets cancelled when the
+ * view is bound to a different image.
+ */
+public class ProcessorCallback implements ImageManagerCallback, Cancellable {
 
     private static final String TAG = "ImageManagerBitmapProcessorCallback";
     private final String url;
+    private final CacheKey cacheKey;
     private final ImageView imageView;
     private final JobOptions options;
     private final ImageManager imageManager;
+    private volatile boolean cancelled;
 
     private static final Handler uiHandler = new Handler(Looper.getMainLooper());
 
@@ -23,40 +32,83 @@ public class ProcessorCallback implements ImageManagerCallback {
         this.url = url;
         this.imageView = imageView;
         this.options = options;
+        this.cacheKey = ImageManager.getCacheKeyForJob(url, options);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public CacheKey getCacheKey() {
+        return cacheKey;
+    }
+
+    /**
+     * Cancels this request and detaches it from the job loading its image. The job itself stops
+     * before its next stage if no other request is attached to it.
+     */
+    public void cancel() {
+        cancelled = true;
+        imageManager.getInFlightRequests().detach(cacheKey, this);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
     }
 
+    /**
+     * Receives the display ready (already transformed) bitmap and caches it under the
+     * transformation aware cache key.
+     */
     @Override
     public void onBitmapLoaded(final Bitmap bitmap, final LoadedFrom source) {
         if (bitmap == null) {
             Log.e(TAG, "queueJob for urlString null");
+            finish();
             return;
         }
 
-        imageManager.getCacheManager().put(ImageManager.getCacheKeyForJob(url, options), bitmap);
-
-        final String cachedUrl = imageManager.getRunningJobs().get(imageView);
+        // Keeps the bitmap out of the pool until it's displayed and released by its drawable
+        imageManager.getCacheManager().acquire(cacheKey, bitmap);
+        onBitmapAcquired(bitmap, source);
+    }
 
-        if (cachedUrl != null && cachedUrl.equals(url)) {
-            options.fadeIn = true;
-            setImageDrawable(imageView, bitmap, options, source);
+    /**
+     * Displays a bitmap the caller acquired a reference to on behalf of this request.
+     */
+    void onBitmapAcquired(final Bitmap bitmap, final LoadedFrom source) {
+        if (cancelled) {
+            imageManager.getCacheManager().release(bitmap);
+            return;
         }
+
+        options.fadeIn = true;
+        setImageDrawable(imageView, bitmap, options, source);
     }
 
     @Override
     public void onLoadFailed(final LoadedFrom source, final Exception e) {
-        if (imageManager.getPlaceholderResId() != ImageManager.NO_PLACEHOLDER) {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
+        Log.e(TAG, String.format("failed to load %s: %s from %s", url, e.getMessage(), source.toString()), e);
+
+        if (cancelled)
+            return;
+
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (cancelled)
+                    return;
+
+                if (imageManager.getPlaceholderResId() != ImageManager.NO_PLACEHOLDER)
                     CacheableDrawable.setPlaceholder(imageView, imageManager.getPlaceholderResId(), null);
-                }
-            });
-        }
 
-        Log.e(TAG, String.format("failed to load %s: %s from %s", url, e.getMessage(), source.toString()), e);
+                finish();
+            }
+        });
     }
 
-    private void setImageDrawable(final ImageView imageView, Bitmap bitmap, final JobOptions options, final LoadedFrom loadedFrom) {
+    private void setImageDrawable(final ImageView imageView, final Bitmap bitmap, final JobOptions options, final LoadedFrom loadedFrom) {
         final int targetWidth = imageView.getMeasuredWidth();
         final int targetHeight = imageView.getMeasuredHeight();
         if (targetWidth != 0 && targetHeight != 0) {
@@ -64,30 +116,35 @@ public class ProcessorCallback implements ImageManagerCallback {
             options.requestedHeight = targetHeight;
         }
 
-        // Process the transformed (smaller) image
-        final BitmapProcessor processor = new BitmapProcessor(imageManager.getContext());
-        Bitmap processedBitmap = null;
-
-        if (options.roundedCorners)
-            processedBitmap = processor.getRoundedCorners(bitmap, options.radius);
-        else if (options.circle)
-            processedBitmap = processor.getCircle(bitmap);
-
-        if (processedBitmap != null)
-            bitmap = processedBitmap;
-
-        final Bitmap finalBitmap = bitmap;
-
         uiHandler.post(new Runnable() {
             @Override
             public void run() {
-                CacheableDrawable.setBitmap(imageView, imageManager.getContext(), finalBitmap, loadedFrom, !options.fadeIn, true);
+                if (cancelled) {
+                    imageManager.getCacheManager().release(bitmap);
+                    return;
+                }
+
+                CacheableDrawable.setBitmap(imageView, imageManager.getContext(), imageManager.getCacheManager(), cacheKey, bitmap,
+                        loadedFrom, !options.fadeIn, true);
+                finish();
 
                 final ImageViewCallback imageViewCallback = imageManager.getImageViewCallback();
 
-                if (imageViewCallback != null)
-                    imageViewCallback.onImageLoaded(imageView, finalBitmap);
+                if (imageViewCallback != null) {
+                    // Still referenced by the drawable, which may release it once the view is rebound
+                    imageManager.getCacheManager().export(bitmap);
+                    imageViewCallback.onImageLoaded(imageView, bitmap);
+                }
             }
         });
     }
+
+    private void finish() {
+        final Map<ImageView, ProcessorCallback> runningJobs = imageManager.getRunningJobs();
+
+        synchronized (runningJobs) {
+            if (runningJobs.get(imageView) == this)
+                runningJobs.remove(imageView);
+        }
+    }
 }
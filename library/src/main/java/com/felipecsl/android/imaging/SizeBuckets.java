@@ -0,0 +1,140 @@
+package com.felipecsl.android.imaging;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+
+import com.felipecsl.android.Utils;
+
+/**
+ * Rounds requested sizes up to a small set of bucket sizes, so that views differing by a few
+ * pixels, or measured differently after a rotation, share the same cache key and decode. The view
+ * scales the decoded image down by the few remaining pixels.
+ * <p>
+ * Buckets are defined in dp and converted with the screen density. Sizes larger than the largest
+ * bucket are left as they are.
+ * <p>
+ * Also estimates the hit ratio gained: a memory hit counts as gained when its exact, unrounded
+ * size wasn't requested recently, so it would have missed without the buckets.
+ */
+public class SizeBuckets {
+
+    public static final int[] DEFAULT_BUCKETS_DP = { 32, 48, 64, 96, 128, 192, 256, 384, 512, 768, 1024 };
+
+    private static final int MAX_TRACKED_KEYS = 1024;
+
+    private final int[] buckets;
+    // Recently requested exact keys, to tell the hits the buckets brought
+    private final Map<CacheKey, Boolean> requestedKeys = new LinkedHashMap<CacheKey, Boolean>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<CacheKey, Boolean> eldest) {
+            return size() > MAX_TRACKED_KEYS;
+        }
+    };
+    private int requestCount;
+    private int hitCount;
+    private int gainedHitCount;
+
+    public SizeBuckets(final Context context) {
+        this(context, DEFAULT_BUCKETS_DP);
+    }
+
+    /**
+     * @param bucketsDp bucket sizes in dp, in any order
+     */
+    public SizeBuckets(final Context context, final int[] bucketsDp) {
+        buckets = new int[bucketsDp.length];
+
+        for (int i = 0; i < bucketsDp.length; i++) {
+            buckets[i] = Utils.dpToPx(context, bucketsDp[i]);
+        }
+
+        Arrays.sort(buckets);
+    }
+
+    /**
+     * @return the smallest bucket at least as large as the size, or the size itself if it's 0 or
+     *         larger than every bucket
+     */
+    public int quantize(final int size) {
+        if (size <= 0)
+            return size;
+
+        for (final int bucket : buckets) {
+            if (bucket >= size)
+                return bucket;
+        }
+
+        return size;
+    }
+
+    /**
+     * @return a copy of the options with the requested width and height rounded up to their
+     *         buckets
+     */
+    public JobOptions quantize(final JobOptions options) {
+        final JobOptions quantized = new JobOptions(options);
+        quantized.requestedWidth = quantize(options.requestedWidth);
+        quantized.requestedHeight = quantize(options.requestedHeight);
+        return quantized;
+    }
+
+    /**
+     * Records a request made through the buckets.
+     *
+     * @param exactKey cache key the request would have had without the buckets
+     * @param hit whether the request was served from memory
+     */
+    public synchronized void recordRequest(final CacheKey exactKey, final boolean hit) {
+        final boolean requestedBefore = requestedKeys.put(exactKey, Boolean.TRUE) != null;
+
+        requestCount++;
+
+        if (hit) {
+            hitCount++;
+
+            if (!requestedBefore)
+                gainedHitCount++;
+        }
+    }
+
+    public synchronized int getRequestCount() {
+        return requestCount;
+    }
+
+    public synchronized int getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of memory hits that would have been misses without the buckets
+     */
+    public synchronized int getGainedHitCount() {
+        return gainedHitCount;
+    }
+
+    /**
+     * @return fraction of the requests served from memory
+     */
+    public synchronized float getHitRatio() {
+        return requestCount != 0 ? (float)hitCount / requestCount : 0;
+    }
+
+    /**
+     * @return fraction of the requests served from memory only thanks to the buckets, to be
+     *         compared with {@link #getHitRatio()}
+     */
+    public synchronized float getHitRatioGain() {
+        return requestCount != 0 ? (float)gainedHitCount / requestCount : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SizeBuckets[requests=%d,hitRatio=%.2f,hitRatioGain=%.2f]", requestCount, getHitRatio(),
+                getHitRatioGain());
+    }
+}
@@ -0,0 +1,29 @@
+package com.felipecsl.android.imaging;
+
+import android.os.Process;
+
+/**
+ * Sizing of one {@link PipelineStage}.
+ */
+public class StageOptions {
+    public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+    // number of worker threads
+    public int poolSize;
+
+    // android.os.Process thread priority of the workers
+    public int threadPriority = Process.THREAD_PRIORITY_BACKGROUND;
+
+    // max number of queued tasks, the oldest queued task is dropped when it's exceeded
+    public int queueDepth = DEFAULT_QUEUE_DEPTH;
+
+    public StageOptions(final int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public StageOptions(final int poolSize, final int threadPriority, final int queueDepth) {
+        this.poolSize = poolSize;
+        this.threadPriority = threadPriority;
+        this.queueDepth = queueDepth;
+    }
+}
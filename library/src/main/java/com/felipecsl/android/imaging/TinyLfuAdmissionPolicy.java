@@ -0,0 +1,100 @@
+package com.felipecsl.android.imaging;
+
+/**
+ * Admits a new entry only if its key was looked up at least as often, recently, as the key of the
+ * entry it would evict. Images shown once while flinging through a list can then only replace
+ * each other, not the avatars and headers shown on every screen.
+ * <p>
+ * Lookup frequencies are estimated by a count-min sketch of 4 bit counters, which takes a few
+ * kilobytes whatever the number of distinct keys. All the counters are halved once enough
+ * lookups were recorded, so that images that stopped being shown are eventually forgotten.
+ */
+public class TinyLfuAdmissionPolicy implements AdmissionPolicy {
+
+    public static final int DEFAULT_WIDTH = 1024;
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = { 0x97cb3127, 0x5c8a1e43, 0xc3a5c85c, 0x2d6f9b1d };
+
+    private final byte[] counters;
+    private final int widthMask;
+    private final int sampleSize;
+    private int additions;
+
+    public TinyLfuAdmissionPolicy() {
+        this(DEFAULT_WIDTH);
+    }
+
+    /**
+     * @param width number of counters per row of the sketch, rounded up to a power of two. Should
+     *            be a few times the number of entries the cache usually holds.
+     */
+    public TinyLfuAdmissionPolicy(final int width) {
+        final int roundedWidth = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+
+        counters = new byte[DEPTH * roundedWidth];
+        widthMask = roundedWidth - 1;
+        sampleSize = 10 * roundedWidth;
+    }
+
+    @Override
+    public synchronized void recordAccess(final CacheKey key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = indexOf(hash, i);
+
+            if (counters[index] < MAX_COUNT) {
+                counters[index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions >= sampleSize)
+            age();
+    }
+
+    @Override
+    public synchronized boolean admit(final CacheKey candidate, final CacheKey victim) {
+        // Ties go to the candidate, so that entries seen only once still turn over in LRU order
+        return frequencyOf(candidate) >= frequencyOf(victim);
+    }
+
+    /**
+     * @return estimated number of recent lookups of the key, up to 15
+     */
+    public synchronized int frequencyOf(final CacheKey key) {
+        final int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, i)]);
+        }
+
+        return frequency;
+    }
+
+    private void age() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+
+        additions /= 2;
+    }
+
+    private int indexOf(final int hash, final int row) {
+        final int h = spread(hash ^ SEEDS[row]);
+        return row * (widthMask + 1) + (h & widthMask);
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -12,13 +12,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.app.Activity;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.GridView;
 import android.widget.Toast;
 
-import com.felipecsl.android.imaging.DiskLruImageCache;
 import com.loopj.android.http.AsyncHttpClient;
 import com.loopj.android.http.JsonHttpResponseHandler;
 import com.loopj.android.http.PersistentCookieStore;
@@ -49,20 +47,8 @@ public class MainActivity extends Activity {
         final PersistentCookieStore myCookieStore = new PersistentCookieStore(this);
         httpClient.setCookieStore(myCookieStore);
 
-        if (!DiskLruImageCache.isInitialized()) {
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(final Void... params) {
-                    DiskLruImageCache.getInstance(MainActivity.this);
-                    return null;
-                }
-
-                @Override
-                protected void onPostExecute(final Void result) {
-                    initGrid();
-                }
-            }.execute();
-        }
+        // The disk cache is opened in the background, so there's no need to wait for it
+        initGrid();
     }
 
     protected void initGrid() {